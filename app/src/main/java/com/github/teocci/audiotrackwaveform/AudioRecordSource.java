@@ -0,0 +1,80 @@
+package com.github.teocci.audiotrackwaveform;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+
+public class AudioRecordSource implements AudioSource
+{
+    private final int sampleRate;
+    private final int bufferSize;
+    private AudioRecord record;
+
+    public AudioRecordSource(int sampleRate)
+    {
+        this.sampleRate = sampleRate;
+
+        // buffer size in bytes
+        int size = AudioRecord.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+
+        if (size == AudioRecord.ERROR || size == AudioRecord.ERROR_BAD_VALUE) {
+            size = sampleRate * 2;
+        }
+        bufferSize = size;
+    }
+
+    @Override
+    public boolean start()
+    {
+        record = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
+                sampleRate,
+                AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT,
+                bufferSize);
+
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            record.release();
+            record = null;
+            return false;
+        }
+        record.startRecording();
+        return true;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length)
+    {
+        return record.read(buffer, offset, length);
+    }
+
+    @Override
+    public void stop()
+    {
+        if (record == null)
+            return;
+
+        record.stop();
+        record.release();
+        record = null;
+    }
+
+    @Override
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannels()
+    {
+        return 1;
+    }
+
+    @Override
+    public int getBufferSize()
+    {
+        return bufferSize / 2;
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.teocci.audiotrackwaveform;
+
+/**
+ * Where {@link PlaybackThread} streams audio to. {@link AudioTrackSink} plays through an
+ * {@link android.media.AudioTrack}; the unit tests use a fake that consumes samples at the
+ * rate of a simulated clock so the playback pipeline can run off-device.
+ */
+
+public interface AudioSink
+{
+    interface PositionListener
+    {
+        /**
+         * @param headFrames the number of frames played since {@link #start()}.
+         */
+        void onPeriodicNotification(long headFrames);
+
+        void onMarkerReached();
+    }
+
+    /**
+     * Sets the listener and how often, in frames, it is notified. Must be called before
+     * {@link #start()}.
+     */
+    void setPositionListener(PositionListener listener, int periodFrames);
+
+    /**
+     * Asks for {@link PositionListener#onMarkerReached()} once {@code frames} have been played.
+     */
+    void setNotificationMarkerPosition(long frames);
+
+    /**
+     * @return false when the sink could not be initialized.
+     */
+    boolean start();
+
+    /**
+     * Queues samples, blocking while the sink's buffer is full.
+     *
+     * @return the number of samples written, or a negative error code.
+     */
+    int write(short[] buffer, int offset, int length);
+
+    /**
+     * Signals that no more data follows; the queued data keeps playing.
+     */
+    void drain();
+
+    long getPlaybackHeadPosition();
+
+    void release();
+
+    int getSampleRate();
+
+    /**
+     * @return the preferred write size in samples.
+     */
+    int getBufferSize();
+}
@@ -0,0 +1,36 @@
+package com.github.teocci.audiotrackwaveform;
+
+/**
+ * Where {@link RecordingThread} pulls captured audio from. {@link AudioRecordSource} reads the
+ * microphone; the unit tests use a fake that synthesizes audio against a simulated clock so
+ * the capture pipeline can run off-device.
+ */
+
+public interface AudioSource
+{
+    /**
+     * @return false when the source could not be initialized.
+     */
+    boolean start();
+
+    /**
+     * Blocks until {@code length} samples are available.
+     *
+     * @return the number of samples read, or a negative value once no more data will come.
+     */
+    int read(short[] buffer, int offset, int length);
+
+    /**
+     * Stops capturing and releases the source.
+     */
+    void stop();
+
+    int getSampleRate();
+
+    int getChannels();
+
+    /**
+     * @return the preferred read size in samples.
+     */
+    int getBufferSize();
+}
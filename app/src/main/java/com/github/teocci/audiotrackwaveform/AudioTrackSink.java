@@ -0,0 +1,132 @@
+package com.github.teocci.audiotrackwaveform;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+public class AudioTrackSink implements AudioSink
+{
+    private final int sampleRate;
+    private final int bufferSize;
+    private AudioTrack audioTrack;
+    private PositionListener positionListener;
+    private int periodFrames;
+
+    public AudioTrackSink(int sampleRate)
+    {
+        this.sampleRate = sampleRate;
+
+        int size = AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        if (size == AudioTrack.ERROR || size == AudioTrack.ERROR_BAD_VALUE) {
+            size = sampleRate * 2;
+        }
+        bufferSize = size;
+    }
+
+    @Override
+    public void setPositionListener(PositionListener listener, int periodFrames)
+    {
+        this.positionListener = listener;
+        this.periodFrames = periodFrames;
+    }
+
+    @Override
+    public synchronized void setNotificationMarkerPosition(long frames)
+    {
+        if (audioTrack != null) {
+            audioTrack.setNotificationMarkerPosition((int) frames);
+        }
+    }
+
+    @Override
+    public synchronized boolean start()
+    {
+        audioTrack = new AudioTrack(
+                AudioManager.STREAM_MUSIC,
+                sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT,
+                bufferSize,
+                AudioTrack.MODE_STREAM);
+
+        if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+            audioTrack.release();
+            audioTrack = null;
+            return false;
+        }
+
+        if (positionListener != null) {
+            final PositionListener listener = positionListener;
+            audioTrack.setPlaybackPositionUpdateListener(new AudioTrack.OnPlaybackPositionUpdateListener()
+            {
+                @Override
+                public void onPeriodicNotification(AudioTrack track)
+                {
+                    if (track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
+                        listener.onPeriodicNotification(getHeadFrames(track));
+                    }
+                }
+
+                @Override
+                public void onMarkerReached(AudioTrack track)
+                {
+                    listener.onMarkerReached();
+                }
+            });
+            audioTrack.setPositionNotificationPeriod(periodFrames);
+        }
+
+        audioTrack.play();
+        return true;
+    }
+
+    @Override
+    public int write(short[] buffer, int offset, int length)
+    {
+        return audioTrack.write(buffer, offset, length);
+    }
+
+    @Override
+    public void drain()
+    {
+        // A streaming track keeps playing what was queued; the marker reports the end.
+    }
+
+    @Override
+    public long getPlaybackHeadPosition()
+    {
+        return audioTrack != null ? getHeadFrames(audioTrack) : 0;
+    }
+
+    @Override
+    public synchronized void release()
+    {
+        if (audioTrack == null)
+            return;
+
+        audioTrack.release();
+        audioTrack = null;
+    }
+
+    @Override
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    @Override
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * The head position is reported as a 32-bit frame counter which goes negative after
+     * about 13.5 hours at 44.1 kHz, so it is read back as unsigned.
+     */
+    private static long getHeadFrames(AudioTrack track)
+    {
+        return track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+    }
+}
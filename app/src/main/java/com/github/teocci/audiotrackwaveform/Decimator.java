@@ -0,0 +1,232 @@
+package com.github.teocci.audiotrackwaveform;
+
+import java.util.Arrays;
+
+/**
+ * Reduces the capture stream before it is handed to the UI, on the audio thread, with all
+ * state preallocated. Two flavours exist:
+ * <ul>
+ * <li>{@link #lowPass}: an anti-aliased decimator by an integer factor M. The windowed-sinc
+ * low-pass is evaluated in polyphase form, i.e. only once per M input samples for the output
+ * phase that is kept, so the cost is taps/M multiply-adds per input sample.</li>
+ * <li>{@link #envelope}: one {max, min} pair per display column, which keeps every peak and is
+ * what the waveform actually draws.</li>
+ * </ul>
+ * Output is gathered into fixed-size blocks so listeners still receive a full array on
+ * every call; only {@link #flush} hands over a shorter one when the stream ends.
+ */
+
+public class Decimator
+{
+    private static final int TAPS_PER_PHASE = 8;
+    // Fraction of the output Nyquist frequency kept by the low-pass.
+    private static final double PASSBAND = 0.9;
+
+    private final int factor;
+    private final boolean envelope;
+    private final short[] block;
+    private int blockFill;
+
+    // Low-pass state: history is mirrored so each dot product reads one contiguous window.
+    private final float[] coefficients;
+    private final float[] history;
+    private int historyHead;
+    private int phase;
+
+    // Envelope state.
+    private short envelopeMax = Short.MIN_VALUE, envelopeMin = Short.MAX_VALUE;
+
+    private Decimator(int factor, boolean envelope, int blockSize)
+    {
+        this.factor = Math.max(factor, 1);
+        this.envelope = envelope;
+        this.block = new short[blockSize];
+
+        if (envelope || this.factor == 1) {
+            coefficients = null;
+            history = null;
+        } else {
+            coefficients = designLowPass(this.factor * TAPS_PER_PHASE, PASSBAND * 0.5 / this.factor);
+            history = new float[coefficients.length * 2];
+        }
+    }
+
+    /**
+     * @param blockSize samples per block handed to the listener.
+     */
+    public static Decimator lowPass(int inputRate, int outputRate, int blockSize)
+    {
+        int factor = Math.max(1, Math.round(inputRate / (float) outputRate));
+        return new Decimator(factor, false, blockSize);
+    }
+
+    /**
+     * @param columnsPerBlock columns per block; each block holds {@code 2 * columnsPerBlock}
+     *                        samples laid out as max, min, max, min...
+     */
+    public static Decimator envelope(int framesPerColumn, int columnsPerBlock)
+    {
+        return new Decimator(framesPerColumn, true, columnsPerBlock * 2);
+    }
+
+    public int getFactor()
+    {
+        return factor;
+    }
+
+    public boolean isEnvelope()
+    {
+        return envelope;
+    }
+
+    public int getOutputRate(int inputRate)
+    {
+        return inputRate / factor;
+    }
+
+    public void reset()
+    {
+        blockFill = 0;
+        phase = 0;
+        historyHead = 0;
+        envelopeMax = Short.MIN_VALUE;
+        envelopeMin = Short.MAX_VALUE;
+        if (history != null) {
+            for (int i = 0; i < history.length; i++) {
+                history[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Consumes {@code length} samples and passes every completed block to {@code listener}.
+     * The block array is reused, so listeners must copy anything they keep.
+     */
+    public void process(short[] input, int offset, int length, AudioDataReceivedListener listener)
+    {
+        if (envelope) {
+            processEnvelope(input, offset, length, listener);
+        } else if (coefficients == null) {
+            for (int i = offset; i < offset + length; i++) {
+                emit(input[i], listener);
+            }
+        } else {
+            processLowPass(input, offset, length, listener);
+        }
+    }
+
+    /**
+     * Passes what is still pending when the stream ends to {@code listener}: an open envelope
+     * column is closed over the frames it has, and a partial block is delivered as a copy of
+     * its filled part. Samples that have not completed a low-pass output phase are dropped.
+     */
+    public void flush(AudioDataReceivedListener listener)
+    {
+        if (envelope && phase > 0) {
+            emit(envelopeMax, listener);
+            emit(envelopeMin, listener);
+            envelopeMax = Short.MIN_VALUE;
+            envelopeMin = Short.MAX_VALUE;
+            phase = 0;
+        }
+        if (blockFill > 0) {
+            short[] tail = Arrays.copyOf(block, blockFill);
+            blockFill = 0;
+            listener.onAudioDataReceived(tail);
+        }
+    }
+
+    private void processLowPass(short[] input, int offset, int length,
+                                AudioDataReceivedListener listener)
+    {
+        final float[] coefficients = this.coefficients;
+        final float[] history = this.history;
+        final int taps = coefficients.length;
+        int head = historyHead;
+        int phase = this.phase;
+
+        for (int i = offset; i < offset + length; i++) {
+            head = head + 1 == taps ? 0 : head + 1;
+            float x = input[i];
+            history[head] = x;
+            history[head + taps] = x;
+
+            if (++phase < factor)
+                continue;
+            phase = 0;
+
+            // history[head + taps - k] is x[n - k]
+            float y = 0;
+            int newest = head + taps;
+            for (int k = 0; k < taps; k++) {
+                y += coefficients[k] * history[newest - k];
+            }
+            emit(clamp(y), listener);
+        }
+
+        historyHead = head;
+        this.phase = phase;
+    }
+
+    private void processEnvelope(short[] input, int offset, int length,
+                                 AudioDataReceivedListener listener)
+    {
+        short max = envelopeMax, min = envelopeMin;
+        int phase = this.phase;
+        for (int i = offset; i < offset + length; i++) {
+            short x = input[i];
+            if (x > max) max = x;
+            if (x < min) min = x;
+            if (++phase < factor)
+                continue;
+
+            phase = 0;
+            emit(max, listener);
+            emit(min, listener);
+            max = Short.MIN_VALUE;
+            min = Short.MAX_VALUE;
+        }
+        envelopeMax = max;
+        envelopeMin = min;
+        this.phase = phase;
+    }
+
+    private void emit(short sample, AudioDataReceivedListener listener)
+    {
+        block[blockFill++] = sample;
+        if (blockFill == block.length) {
+            blockFill = 0;
+            listener.onAudioDataReceived(block);
+        }
+    }
+
+    private static short clamp(float value)
+    {
+        if (value >= Short.MAX_VALUE) return Short.MAX_VALUE;
+        if (value <= Short.MIN_VALUE) return Short.MIN_VALUE;
+        return (short) Math.round(value);
+    }
+
+    /**
+     * Blackman-windowed sinc with unity DC gain; {@code cutoff} is in cycles per input sample.
+     */
+    private static float[] designLowPass(int taps, double cutoff)
+    {
+        float[] h = new float[taps];
+        double center = (taps - 1) / 2.0;
+        double sum = 0;
+        double[] values = new double[taps];
+        for (int n = 0; n < taps; n++) {
+            double t = n - center;
+            double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * n / (taps - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * n / (taps - 1));
+            values[n] = sinc * window;
+            sum += values[n];
+        }
+        for (int n = 0; n < taps; n++) {
+            h[n] = (float) (values[n] / sum);
+        }
+        return h;
+    }
+}
@@ -13,6 +13,7 @@ import android.view.View;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import com.github.teocci.waveform.WaveformModel;
 import com.github.teocci.waveform.WaveformView;
 
 import org.apache.commons.io.IOUtils;
@@ -34,7 +35,16 @@ public class MainActivity extends AppCompatActivity
     private WaveformView realtimeWaveformView;
     private RecordingThread recordingThread;
     private PlaybackThread playbackThread;
+    private WaveformModel playbackModel;
+    private boolean retainingModel;
     private static final int REQUEST_RECORD_AUDIO = 13;
+    private static final String PLAYBACK_MODEL_KEY = "raw/jinglebells";
+    private static final int DETAIL_SECONDS = 3;
+    // One envelope column per 8 captured samples, 256 columns per update (~46 ms).
+    private static final int ENVELOPE_FRAMES_PER_COLUMN = 8;
+    private static final int ENVELOPE_COLUMNS = 256;
+    // Short enough to be inaudible as a fade, long enough to hide the click at the wrap.
+    private static final int LOOP_CROSSFADE_MS = 10;
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
@@ -53,8 +63,13 @@ public class MainActivity extends AppCompatActivity
                 realtimeWaveformView.setSamples(data);
             }
         });
+        // Only peak envelopes cross from the audio thread to the view.
+        recordingThread.setDecimator(Decimator.envelope(ENVELOPE_FRAMES_PER_COLUMN, ENVELOPE_COLUMNS));
+        realtimeWaveformView.setSampleRate(RecordingThread.SAMPLE_RATE);
+        realtimeWaveformView.setRecordingEnvelope(true, ENVELOPE_FRAMES_PER_COLUMN);
 
         final WaveformView mPlaybackView = (WaveformView) findViewById(R.id.playbackWaveformView);
+        final WaveformView mDetailView = (WaveformView) findViewById(R.id.detailWaveformView);
 
         FloatingActionButton fab = (FloatingActionButton) findViewById(R.id.fab);
         fab.setOnClickListener(new View.OnClickListener()
@@ -70,34 +85,63 @@ public class MainActivity extends AppCompatActivity
             }
         });
 
-        short[] samples = null;
-        try {
-            samples = getAudioSample();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        if (samples != null) {
+        playbackModel = obtainPlaybackModel();
+        if (playbackModel != null) {
             final FloatingActionButton playFab = (FloatingActionButton) findViewById(R.id.playFab);
 
-            playbackThread = new PlaybackThread(samples, new PlaybackListener()
+            playbackThread = new PlaybackThread(playbackModel.getSamples(), new PlaybackListener()
             {
                 @Override
-                public void onProgress(int progress)
+                public void onProgress(long framePosition)
                 {
-                    mPlaybackView.setMarkerPosition(progress);
+                    mPlaybackView.setMarkerPosition(framePosition);
+                    mDetailView.setMarkerPosition(framePosition);
                 }
 
                 @Override
                 public void onCompletion()
                 {
-                    mPlaybackView.setMarkerPosition(mPlaybackView.getAudioLength());
+                    mPlaybackView.setMarkerPosition(mPlaybackView.getFrameCount());
+                    mDetailView.setMarkerPosition(mDetailView.getFrameCount());
                     playFab.setImageResource(android.R.drawable.ic_media_play);
                 }
             });
-            mPlaybackView.setChannels(1);
-            mPlaybackView.setSampleRate(PlaybackThread.SAMPLE_RATE);
-            mPlaybackView.setSamples(samples);
+            // Both views share the model's samples and peaks.
+            mPlaybackView.setModel(playbackModel);
+            mDetailView.setModel(playbackModel);
+            mDetailView.setVisibleRange(0, DETAIL_SECONDS * PlaybackThread.SAMPLE_RATE);
+            playbackThread.setActivityIndex(playbackModel.getActivityIndex());
+            playbackThread.setCrossfadeFrames(LOOP_CROSSFADE_MS * PlaybackThread.SAMPLE_RATE / 1000);
+
+            // Dragging across either view selects the region to play; a tap clears it.
+            WaveformView.SelectionListener selectionListener = new WaveformView.SelectionListener()
+            {
+                @Override
+                public void onSelectionChanged(WaveformView view, long startFrame, long endFrame)
+                {
+                    mPlaybackView.setSelection(startFrame, endFrame);
+                    mDetailView.setSelection(startFrame, endFrame);
+                    if (startFrame < 0) {
+                        playbackThread.clearRegion();
+                    } else {
+                        playbackThread.setRegion(startFrame, endFrame);
+                    }
+                }
+            };
+            mPlaybackView.setSelectionListener(selectionListener);
+            mDetailView.setSelectionListener(selectionListener);
+
+            FloatingActionButton loopFab = (FloatingActionButton) findViewById(R.id.loopFab);
+            loopFab.setOnClickListener(new View.OnClickListener()
+            {
+                @Override
+                public void onClick(View v)
+                {
+                    playbackThread.setLooping(!playbackThread.looping());
+                    Snackbar.make(v, playbackThread.looping() ? "Looping the selection" : "Looping off",
+                            Snackbar.LENGTH_SHORT).show();
+                }
+            });
 
             playFab.setOnClickListener(new View.OnClickListener()
             {
@@ -125,6 +169,47 @@ public class MainActivity extends AppCompatActivity
         playbackThread.stopPlayback();
     }
 
+    @Override
+    public Object onRetainCustomNonConfigurationInstance()
+    {
+        // Hand our reference over to the next instance instead of releasing it.
+        retainingModel = playbackModel != null;
+        return playbackModel;
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+
+        if (playbackModel != null && !retainingModel) {
+            playbackModel.release();
+        }
+    }
+
+    /**
+     * Returns the model of the bundled sample, decoding it only if neither a previous instance
+     * of this Activity nor anyone else in the process still holds it.
+     */
+    private WaveformModel obtainPlaybackModel()
+    {
+        WaveformModel model = (WaveformModel) getLastCustomNonConfigurationInstance();
+        if (model != null)
+            return model;
+
+        model = WaveformModel.acquire(PLAYBACK_MODEL_KEY);
+        if (model != null)
+            return model;
+
+        try {
+            return WaveformModel.register(PLAYBACK_MODEL_KEY,
+                    new WaveformModel(getAudioSample(), PlaybackThread.SAMPLE_RATE, 1));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     private short[] getAudioSample() throws IOException
     {
         InputStream is = getResources().openRawResource(R.raw.jinglebells);
@@ -164,6 +249,14 @@ public class MainActivity extends AppCompatActivity
             return true;
         }
 
+        if (id == R.id.action_skip_silence) {
+            item.setChecked(!item.isChecked());
+            if (playbackThread != null) {
+                playbackThread.setSkipSilence(item.isChecked());
+            }
+            return true;
+        }
+
         return super.onOptionsItemSelected(item);
     }
 
@@ -8,7 +8,10 @@ package com.github.teocci.audiotrackwaveform;
 
 public interface PlaybackListener
 {
-    void onProgress(int progress);
+    /**
+     * @param framePosition the playback head position in frames since the start of the buffer.
+     */
+    void onProgress(long framePosition);
 
     void onCompletion();
 }
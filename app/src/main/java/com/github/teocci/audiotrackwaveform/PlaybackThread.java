@@ -1,15 +1,18 @@
 package com.github.teocci.audiotrackwaveform;
 
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
 import android.util.Log;
 
-import java.nio.ShortBuffer;
+import com.github.teocci.waveform.ActivityIndex;
 
 /**
  * Created by teocci.
  *
+ * Streams mono samples to an {@link AudioSink}, either the whole buffer or a region of it.
+ * A looping region is written back to back into the same stream: every write is filled up to
+ * the buffer size, wrapping to the loop start inside the buffer when needed, so the next
+ * iteration is already queued in the sink before the current one finishes playing and the
+ * sink never sees a short write or a restart at the boundary.
+ *
  * @author teocci@yandex.com on 2017/Apr/05
  */
 
@@ -18,19 +21,132 @@ public class PlaybackThread
     static final int SAMPLE_RATE = 44100;
     private static final String LOG_TAG = PlaybackThread.class.getSimpleName();
 
+    // Initial capacity of the segment ring; it grows rather than drop segments still queued.
+    private static final int INITIAL_SEGMENTS = 32;
+
     private Thread thread;
     private boolean shouldContinue;
-    private ShortBuffer sampleBuffer;
+    private final short[] samples;
     private int numSamples;
     private PlaybackListener playbackListener;
+    private AudioSink audioSink;
+
+    private volatile ActivityIndex activityIndex;
+    private volatile boolean skipSilence;
+
+    // Playback region in frames, guarded by regionLock so start and end change together.
+    private final Object regionLock = new Object();
+    private long regionStart;
+    private long regionEnd;
+    private volatile boolean looping;
+    private volatile int crossfadeFrames;
+
+    // Ring of (frames written, source frame, period) entries, one per skip or loop start,
+    // mapping the head back to the source position. A periodic entry repeats its first
+    // period frames, so a loop costs one entry however many times it wraps.
+    private long[] segmentWritten = new long[INITIAL_SEGMENTS];
+    private long[] segmentSource = new long[INITIAL_SEGMENTS];
+    private long[] segmentPeriod = new long[INITIAL_SEGMENTS];
+    private int segmentFirst, segmentCount;
 
     public PlaybackThread(short[] samples, PlaybackListener listener)
     {
-        sampleBuffer = ShortBuffer.wrap(samples);
+        this(samples, new AudioTrackSink(SAMPLE_RATE), listener);
+    }
+
+    public PlaybackThread(short[] samples, AudioSink sink, PlaybackListener listener)
+    {
+        this.samples = samples;
         numSamples = samples.length;
+        regionEnd = numSamples;
+        audioSink = sink;
         playbackListener = listener;
     }
 
+    public void setActivityIndex(ActivityIndex activityIndex)
+    {
+        this.activityIndex = activityIndex;
+    }
+
+    /**
+     * Jumps over the silent regions of the {@link ActivityIndex}, if one is set. Takes effect
+     * on the next buffer written.
+     */
+    public void setSkipSilence(boolean skipSilence)
+    {
+        this.skipSilence = skipSilence;
+    }
+
+    public boolean skipSilence()
+    {
+        return skipSilence;
+    }
+
+    /**
+     * Restricts playback to frames {@code [startFrame, endFrame)}. While playing, the new region
+     * takes effect on the next buffer written; a position outside it jumps to its start.
+     */
+    public void setRegion(long startFrame, long endFrame)
+    {
+        startFrame = Math.max(0, Math.min(startFrame, numSamples));
+        endFrame = Math.max(startFrame, Math.min(endFrame, numSamples));
+        synchronized (regionLock) {
+            regionStart = startFrame;
+            regionEnd = endFrame;
+        }
+    }
+
+    /**
+     * Plays the whole buffer again.
+     */
+    public void clearRegion()
+    {
+        setRegion(0, numSamples);
+    }
+
+    public long getRegionStart()
+    {
+        synchronized (regionLock) {
+            return regionStart;
+        }
+    }
+
+    public long getRegionEnd()
+    {
+        synchronized (regionLock) {
+            return regionEnd;
+        }
+    }
+
+    /**
+     * Repeats the region until playback is stopped or looping is turned off, in which case
+     * the current iteration plays to the end.
+     */
+    public void setLooping(boolean looping)
+    {
+        this.looping = looping;
+    }
+
+    public boolean looping()
+    {
+        return looping;
+    }
+
+    /**
+     * Blends the last {@code frames} of a looping region into the frames that lead up to its
+     * start, so the wrap continues from matching audio instead of clicking. Limited by the
+     * audio available before the region start and by half the region length; 0 disables it.
+     */
+    public void setCrossfadeFrames(int frames)
+    {
+        crossfadeFrames = Math.max(frames, 0);
+    }
+
+    public int getCrossfadeFrames()
+    {
+        return crossfadeFrames;
+    }
+
     public boolean playing()
     {
         return thread != null;
@@ -65,72 +181,199 @@ public class PlaybackThread
 
     private void play()
     {
-        int bufferSize = AudioTrack.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_OUT_MONO,
-                AudioFormat.ENCODING_PCM_16BIT);
-        if (bufferSize == AudioTrack.ERROR || bufferSize == AudioTrack.ERROR_BAD_VALUE) {
-            bufferSize = SAMPLE_RATE * 2;
-        }
-
-        AudioTrack audioTrack = new AudioTrack(
-                AudioManager.STREAM_MUSIC,
-                SAMPLE_RATE,
-                AudioFormat.CHANNEL_OUT_MONO,
-                AudioFormat.ENCODING_PCM_16BIT,
-                bufferSize,
-                AudioTrack.MODE_STREAM);
-
-        audioTrack.setPlaybackPositionUpdateListener(new AudioTrack.OnPlaybackPositionUpdateListener()
+        final AudioSink sink = audioSink;
+        sink.setPositionListener(new AudioSink.PositionListener()
         {
             @Override
-            public void onPeriodicNotification(AudioTrack track)
+            public void onPeriodicNotification(long headFrames)
             {
-                if (playbackListener != null && track.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
-                    playbackListener.onProgress((track.getPlaybackHeadPosition() * 1000) / SAMPLE_RATE);
+                if (playbackListener != null) {
+                    playbackListener.onProgress(toSourceFrame(headFrames));
                 }
             }
 
             @Override
-            public void onMarkerReached(AudioTrack track)
+            public void onMarkerReached()
             {
                 Log.v(LOG_TAG, "Audio file end reached");
-                track.release();
+                sink.release();
                 if (playbackListener != null) {
                     playbackListener.onCompletion();
                 }
             }
-        });
-        audioTrack.setPositionNotificationPeriod(SAMPLE_RATE / 30); // 30 times per second
-        audioTrack.setNotificationMarkerPosition(numSamples);
+        }, sink.getSampleRate() / 30); // 30 times per second
 
-        audioTrack.play();
+        long[] region = new long[2];
+        readRegion(region);
+        long position = region[0];
+
+        if (!sink.start()) {
+            Log.e(LOG_TAG, "Audio Track can't initialize!");
+            return;
+        }
 
         Log.v(LOG_TAG, "Audio streaming started");
 
-        short[] buffer = new short[bufferSize];
-        sampleBuffer.rewind();
-        int limit = numSamples;
-        int totalWritten = 0;
-        while (sampleBuffer.position() < limit && shouldContinue) {
-            int numSamplesLeft = limit - sampleBuffer.position();
-            int samplesToWrite;
-            if (numSamplesLeft >= buffer.length) {
-                sampleBuffer.get(buffer);
-                samplesToWrite = buffer.length;
-            } else {
-                for (int i = numSamplesLeft; i < buffer.length; i++) {
-                    buffer[i] = 0;
+        // Mono, so frames and samples coincide.
+        short[] buffer = new short[sink.getBufferSize()];
+        resetSegments(position);
+        long totalWritten = 0;
+        long lastWrap = -1;
+        boolean finished = false;
+        while (!finished && shouldContinue) {
+            int fill = 0;
+            while (fill < buffer.length) {
+                readRegion(region);
+                long start = region[0], end = region[1];
+                long written = totalWritten + fill;
+                if (position >= end && !looping) {
+                    finished = true;
+                    break;
+                }
+                if (position < start || position >= end) {
+                    if (lastWrap == written) {
+                        // A whole pass produced nothing, e.g. the region is entirely silent.
+                        finished = true;
+                        break;
+                    }
+                    lastWrap = written;
+                    position = start;
+                    addWrap(written, start, end - start);
+                    continue;
+                }
+
+                long chunkEnd = end;
+                ActivityIndex index = skipSilence ? activityIndex : null;
+                if (index != null) {
+                    long next = index.nextActiveFrame(position);
+                    if (next < 0 || next >= end) {
+                        position = end;
+                        continue;
+                    }
+                    if (next != position) {
+                        position = next;
+                        addSegment(written, next, 0);
+                    }
+                    chunkEnd = Math.min(end, index.activeEnd(next));
+                }
+
+                int count = (int) Math.min(chunkEnd - position, buffer.length - fill);
+                System.arraycopy(samples, (int) position, buffer, fill, count);
+                if (looping) {
+                    crossfade(buffer, fill, position, count, start, end);
                 }
-                sampleBuffer.get(buffer, 0, numSamplesLeft);
-                samplesToWrite = numSamplesLeft;
+                fill += count;
+                position += count;
+            }
+
+            if (fill > 0 && shouldContinue) {
+                sink.write(buffer, 0, fill);
+                totalWritten += fill;
             }
-            totalWritten += samplesToWrite;
-            audioTrack.write(buffer, 0, samplesToWrite);
         }
 
         if (!shouldContinue) {
-            audioTrack.release();
+            sink.release();
+        } else if (totalWritten == 0) {
+            // Nothing was played, so the end marker can never be reached.
+            sink.release();
+            if (playbackListener != null) {
+                playbackListener.onCompletion();
+            }
+        } else {
+            // Skips, loops and region changes make the length known only now, so the end marker
+            // is set once the last frame is queued.
+            sink.setNotificationMarkerPosition(totalWritten);
+            sink.drain();
         }
 
         Log.v(LOG_TAG, "Audio streaming finished. Samples written: " + totalWritten);
     }
+
+    private void readRegion(long[] region)
+    {
+        synchronized (regionLock) {
+            region[0] = regionStart;
+            region[1] = regionEnd;
+        }
+    }
+
+    // Fades frames [end - fade, end) of the region out while the frames before its start fade in.
+    private void crossfade(short[] buffer, int offset, long position, int count, long start, long end)
+    {
+        int fade = (int) Math.min(crossfadeFrames, Math.min(start, (end - start) / 2));
+        long fadeStart = end - fade;
+        if (fade <= 0 || position + count <= fadeStart)
+            return;
+
+        for (long frame = Math.max(position, fadeStart); frame < position + count; frame++) {
+            int i = (int) (frame - fadeStart);
+            float gain = (i + 1) / (float) (fade + 1);
+            float mixed = samples[(int) frame] * (1 - gain) + samples[(int) (start - fade + i)] * gain;
+            buffer[offset + (int) (frame - position)] = (short) Math.round(mixed);
+        }
+    }
+
+    private synchronized void resetSegments(long source)
+    {
+        segmentFirst = 0;
+        segmentCount = 1;
+        segmentWritten[0] = 0;
+        segmentSource[0] = source;
+        segmentPeriod[0] = 0;
+    }
+
+    private synchronized void addSegment(long written, long source, long period)
+    {
+        int capacity = segmentWritten.length;
+        if (segmentCount == capacity) {
+            // Unplayed entries are never dropped; unroll the ring into larger arrays.
+            segmentWritten = unroll(segmentWritten, capacity * 2);
+            segmentSource = unroll(segmentSource, capacity * 2);
+            segmentPeriod = unroll(segmentPeriod, capacity * 2);
+            segmentFirst = 0;
+            capacity *= 2;
+        }
+        int slot = (segmentFirst + segmentCount) % capacity;
+        segmentWritten[slot] = written;
+        segmentSource[slot] = source;
+        segmentPeriod[slot] = period;
+        segmentCount++;
+    }
+
+    private long[] unroll(long[] ring, int capacity)
+    {
+        long[] result = new long[capacity];
+        for (int i = 0; i < segmentCount; i++) {
+            result[i] = ring[(segmentFirst + i) % ring.length];
+        }
+        return result;
+    }
+
+    // A wrap continuing the current periodic entry needs no entry of its own.
+    private synchronized void addWrap(long written, long start, long period)
+    {
+        int last = (segmentFirst + segmentCount - 1) % segmentWritten.length;
+        if (period > 0 && segmentPeriod[last] == period && segmentSource[last] == start
+                && (written - segmentWritten[last]) % period == 0)
+            return;
+        addSegment(written, start, period);
+    }
+
+    /**
+     * Maps a head position, which counts frames actually played, back to a frame of the
+     * sample buffer by undoing the skips and loop wraps made before it.
+     */
+    private synchronized long toSourceFrame(long headFrames)
+    {
+        int capacity = segmentWritten.length;
+        // Drop segments the head has moved past.
+        while (segmentCount > 1 && segmentWritten[(segmentFirst + 1) % capacity] <= headFrames) {
+            segmentFirst = (segmentFirst + 1) % capacity;
+            segmentCount--;
+        }
+        long offset = headFrames - segmentWritten[segmentFirst];
+        long period = segmentPeriod[segmentFirst];
+        return segmentSource[segmentFirst] + (period > 0 ? offset % period : offset);
+    }
 }
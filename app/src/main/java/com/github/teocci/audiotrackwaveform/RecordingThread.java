@@ -1,8 +1,5 @@
 package com.github.teocci.audiotrackwaveform;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.util.Log;
 
 /**
@@ -14,17 +11,34 @@ import android.util.Log;
 public class RecordingThread
 {
     private static final String TAG = RecordingThread.class.getSimpleName();
-    private static final int SAMPLE_RATE = 44100;
+    static final int SAMPLE_RATE = 44100;
 
     public RecordingThread(AudioDataReceivedListener listener)
     {
+        this(new AudioRecordSource(SAMPLE_RATE), listener);
+    }
+
+    public RecordingThread(AudioSource source, AudioDataReceivedListener listener)
+    {
+        audioSource = source;
         audioDataReceivedListener = listener;
     }
 
     private boolean shouldContinue;
+    private AudioSource audioSource;
     private AudioDataReceivedListener audioDataReceivedListener;
+    private Decimator decimator;
     private Thread thread;
 
+    /**
+     * Reduces the stream on the audio thread before it reaches the listener, which then
+     * receives the decimator's blocks instead of raw capture buffers. Set before starting.
+     */
+    public void setDecimator(Decimator decimator)
+    {
+        this.decimator = decimator;
+    }
+
     public boolean recording()
     {
         return thread != null;
@@ -61,42 +75,39 @@ public class RecordingThread
         Log.v(TAG, "Start");
         android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_AUDIO);
 
-        // buffer size in bytes
-        int bufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE,
-                AudioFormat.CHANNEL_IN_MONO,
-                AudioFormat.ENCODING_PCM_16BIT);
-
-        if (bufferSize == AudioRecord.ERROR || bufferSize == AudioRecord.ERROR_BAD_VALUE) {
-            bufferSize = SAMPLE_RATE * 2;
+        short[] audioBuffer = new short[audioSource.getBufferSize()];
+        if (decimator != null) {
+            decimator.reset();
         }
 
-        short[] audioBuffer = new short[bufferSize / 2];
-
-        AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
-                SAMPLE_RATE,
-                AudioFormat.CHANNEL_IN_MONO,
-                AudioFormat.ENCODING_PCM_16BIT,
-                bufferSize);
-
-        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+        if (!audioSource.start()) {
             Log.e(TAG, "Audio Record can't initialize!");
             return;
         }
-        record.startRecording();
 
         Log.v(TAG, "Start recording");
 
         long shortsRead = 0;
         while (shouldContinue) {
-            int numberOfShort = record.read(audioBuffer, 0, audioBuffer.length);
+            int numberOfShort = audioSource.read(audioBuffer, 0, audioBuffer.length);
+            if (numberOfShort < 0) {
+                Log.v(TAG, "Audio source ended: " + numberOfShort);
+                break;
+            }
             shortsRead += numberOfShort;
 
             // Notify waveform
-            audioDataReceivedListener.onAudioDataReceived(audioBuffer);
+            if (decimator != null) {
+                decimator.process(audioBuffer, 0, numberOfShort, audioDataReceivedListener);
+            } else {
+                audioDataReceivedListener.onAudioDataReceived(audioBuffer);
+            }
         }
 
-        record.stop();
-        record.release();
+        if (decimator != null) {
+            decimator.flush(audioDataReceivedListener);
+        }
+        audioSource.stop();
 
         Log.v(TAG, String.format("Recording stopped. Samples read: %d", shortsRead));
     }
@@ -0,0 +1,148 @@
+package com.github.teocci.waveform;
+
+import java.util.Arrays;
+
+/**
+ * Run-length index of the active (non-silent) regions of a recording. It is fed one summary
+ * per {@link PeakPyramid} base block while the peaks are extracted, so finding it costs no
+ * extra pass over the samples. A block is active when its absolute peak reaches the
+ * threshold; a run stays open for a hangover period after its last active block so that
+ * short pauses between words do not split it.
+ *
+ * A live pyramid appends blocks from the capture thread while views and playback read the
+ * runs, so every access takes the index's monitor; the arrays are replaced as they grow.
+ */
+public class ActivityIndex
+{
+    // Roughly -30 dBFS.
+    public static final int DEFAULT_THRESHOLD = 1024;
+    // About 300 ms at 44.1 kHz with 256-frame blocks.
+    public static final int DEFAULT_HANGOVER_BLOCKS = 50;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int threshold;
+    private final long hangoverFrames;
+
+    // Run i covers [starts[i], ends[i] + hangoverFrames), clamped to the next run and the end.
+    private long[] starts = new long[INITIAL_CAPACITY];
+    private long[] ends = new long[INITIAL_CAPACITY];
+    private int runCount;
+    private long frameCount;
+
+    public ActivityIndex()
+    {
+        this(DEFAULT_THRESHOLD, DEFAULT_HANGOVER_BLOCKS);
+    }
+
+    public ActivityIndex(int threshold, int hangoverBlocks)
+    {
+        this.threshold = threshold;
+        this.hangoverFrames = (long) hangoverBlocks * PeakPyramid.BASE_BLOCK_SIZE;
+    }
+
+    public int getThreshold()
+    {
+        return threshold;
+    }
+
+    public synchronized long getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * Records the summary of frames {@code [startFrame, endFrame)}. Blocks must arrive in order.
+     */
+    synchronized void addBlock(long startFrame, long endFrame, short max, short min)
+    {
+        frameCount = endFrame;
+        if (Math.max(max, -(int) min) < threshold) return;
+
+        if (runCount > 0 && startFrame <= ends[runCount - 1] + hangoverFrames) {
+            ends[runCount - 1] = endFrame;
+            return;
+        }
+
+        if (runCount == starts.length) {
+            starts = Arrays.copyOf(starts, runCount * 2);
+            ends = Arrays.copyOf(ends, runCount * 2);
+        }
+        starts[runCount] = startFrame;
+        ends[runCount] = endFrame;
+        runCount++;
+    }
+
+    public synchronized int getRunCount()
+    {
+        return runCount;
+    }
+
+    public synchronized long getRunStart(int run)
+    {
+        return starts[run];
+    }
+
+    public synchronized long getRunEnd(int run)
+    {
+        return Math.min(ends[run] + hangoverFrames, frameCount);
+    }
+
+    /**
+     * @return the index of the run containing {@code frame}, or -1 when it is silent.
+     */
+    public synchronized int findRun(long frame)
+    {
+        int run = lastRunStartingAtOrBefore(frame);
+        return run >= 0 && frame < getRunEnd(run) ? run : -1;
+    }
+
+    public synchronized boolean isActive(long frame)
+    {
+        return findRun(frame) >= 0;
+    }
+
+    /**
+     * @return {@code frame} itself when active, otherwise the start of the next active run, or
+     * -1 when there is no activity after it.
+     */
+    public synchronized long nextActiveFrame(long frame)
+    {
+        int run = lastRunStartingAtOrBefore(frame);
+        if (run >= 0 && frame < getRunEnd(run)) return frame;
+        return run + 1 < runCount ? starts[run + 1] : -1;
+    }
+
+    /**
+     * @return the start of the last active run that begins before {@code frame}, or -1.
+     */
+    public synchronized long previousActiveFrame(long frame)
+    {
+        int run = lastRunStartingAtOrBefore(frame - 1);
+        return run >= 0 ? starts[run] : -1;
+    }
+
+    /**
+     * @return the end of the active run containing {@code frame}, or {@code frame} when silent.
+     */
+    public synchronized long activeEnd(long frame)
+    {
+        int run = findRun(frame);
+        return run >= 0 ? getRunEnd(run) : frame;
+    }
+
+    private int lastRunStartingAtOrBefore(long frame)
+    {
+        int low = 0, high = runCount - 1, result = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= frame) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.teocci.waveform;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+/**
+ * Runs a task on the main thread at most once per display frame, however often
+ * {@link #schedule()} is called and from whichever thread. On API 16+ the task runs from a
+ * {@link Choreographer} frame callback, i.e. in step with vsync; older platforms fall back to
+ * a {@link Handler} paced at the nominal frame interval.
+ */
+class FrameScheduler
+{
+    private static final long FALLBACK_FRAME_MILLIS = 16;
+
+    private final Runnable task;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final VsyncPoster vsyncPoster;
+    private boolean scheduled;
+    private long lastFrameMillis;
+
+    private final Runnable frameRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (vsyncPoster != null) {
+                vsyncPoster.post();
+            } else {
+                onFrame();
+            }
+        }
+    };
+
+    FrameScheduler(Runnable task)
+    {
+        this.task = task;
+        vsyncPoster = Build.VERSION.SDK_INT >= 16 ? new VsyncPoster(this) : null;
+    }
+
+    /**
+     * @return false when a frame was already pending, i.e. this request was coalesced.
+     */
+    boolean schedule()
+    {
+        synchronized (this) {
+            if (scheduled) return false;
+            scheduled = true;
+        }
+
+        if (vsyncPoster != null) {
+            // Choreographer instances are per thread, so register from the main thread.
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                vsyncPoster.post();
+            } else {
+                handler.post(frameRunnable);
+            }
+        } else {
+            long delay = lastFrameMillis + FALLBACK_FRAME_MILLIS - SystemClock.uptimeMillis();
+            handler.postDelayed(frameRunnable, Math.max(0, delay));
+        }
+        return true;
+    }
+
+    void cancel()
+    {
+        handler.removeCallbacks(frameRunnable);
+        if (vsyncPoster != null) {
+            vsyncPoster.cancel();
+        }
+        synchronized (this) {
+            scheduled = false;
+        }
+    }
+
+    private void onFrame()
+    {
+        synchronized (this) {
+            scheduled = false;
+        }
+        lastFrameMillis = SystemClock.uptimeMillis();
+        task.run();
+    }
+
+    // Kept in its own class so that platforms without Choreographer never load it.
+    private static final class VsyncPoster implements Choreographer.FrameCallback
+    {
+        private final FrameScheduler scheduler;
+
+        VsyncPoster(FrameScheduler scheduler)
+        {
+            this.scheduler = scheduler;
+        }
+
+        void post()
+        {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        void cancel()
+        {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                Choreographer.getInstance().removeFrameCallback(this);
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos)
+        {
+            scheduler.onFrame();
+        }
+    }
+}
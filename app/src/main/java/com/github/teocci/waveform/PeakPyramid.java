@@ -0,0 +1,331 @@
+package com.github.teocci.waveform;
+
+import com.github.teocci.waveform.utils.SamplingUtils;
+
+import java.util.Arrays;
+
+/**
+ * Multi-resolution min/max summary of a sample buffer. Level 0 stores one {max, min} pair per
+ * {@link #BASE_BLOCK_SIZE} frames and every following level halves the previous one, so any
+ * frame range can be summarized in O(log n) regardless of how long the recording is. Ranges
+ * are addressed in {@code long} frames to match {@link Timeline}.
+ *
+ * A pyramid created with {@link #PeakPyramid(int)} is append-only: each captured block is
+ * folded into the existing levels with {@link #append}, touching only the trailing entries,
+ * so the cost per block stays constant however long the take grows.
+ *
+ * Every completed base block is also handed to an {@link ActivityIndex}, so the silence map is
+ * produced in the same pass and travels with the peaks. A finished pyramid can be copied into
+ * {@link QuantizedPeaks} to hold it in half the memory.
+ */
+public class PeakPyramid implements PeakSource
+{
+    public static final int BASE_BLOCK_SIZE = 256;
+
+    private static final int MAX_LEVELS = 48;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private short[] samples;
+    private int channels;
+    private long sampleCount;
+    // Read without the monitor by views while the capture thread appends.
+    private volatile long frameCount;
+
+    private short[][] maxLevels = new short[MAX_LEVELS][];
+    private short[][] minLevels = new short[MAX_LEVELS][];
+    private int[] levelCounts = new int[MAX_LEVELS];
+    private int levelCount;
+
+    private final ActivityIndex activityIndex;
+
+    // Scratch {max, min} pairs reused while folding a range.
+    private final short[] extremes = new short[2];
+    private final short[] column = new short[2];
+
+    /**
+     * Builds a complete pyramid over {@code samples}. The array is kept so that partial
+     * blocks at the edges of a range can be resolved exactly.
+     */
+    public PeakPyramid(short[] samples, int channels)
+    {
+        this(samples, channels, new ActivityIndex());
+    }
+
+    public PeakPyramid(short[] samples, int channels, ActivityIndex activityIndex)
+    {
+        this(channels, activityIndex);
+        append(samples, 0, samples.length);
+        this.samples = samples;
+
+        // The trailing partial block never completes, so index it now.
+        int lastBlock = levelCounts[0] - 1;
+        if (lastBlock >= 0 && frameCount % BASE_BLOCK_SIZE != 0) {
+            activityIndex.addBlock((long) lastBlock * BASE_BLOCK_SIZE, frameCount,
+                    maxLevels[0][lastBlock], minLevels[0][lastBlock]);
+        }
+    }
+
+    /**
+     * Creates an empty pyramid to be filled with {@link #append}.
+     */
+    public PeakPyramid(int channels)
+    {
+        this(channels, new ActivityIndex());
+    }
+
+    public PeakPyramid(int channels, ActivityIndex activityIndex)
+    {
+        this.channels = Math.max(channels, 1);
+        this.activityIndex = activityIndex;
+    }
+
+    @Override
+    public long getFrameCount()
+    {
+        return frameCount;
+    }
+
+    public int getChannels()
+    {
+        return channels;
+    }
+
+    public int getLevelCount()
+    {
+        return levelCount;
+    }
+
+    public int getBlockCount(int level)
+    {
+        return levelCounts[level];
+    }
+
+    public long getBlockSize(int level)
+    {
+        return (long) BASE_BLOCK_SIZE << level;
+    }
+
+    // Level arrays may be longer than the level; only getBlockCount(level) entries are valid.
+    short[] getMaxLevel(int level)
+    {
+        return maxLevels[level];
+    }
+
+    short[] getMinLevel(int level)
+    {
+        return minLevels[level];
+    }
+
+    public ActivityIndex getActivityIndex()
+    {
+        return activityIndex;
+    }
+
+    /**
+     * @return the largest absolute sample seen so far, read from the top level in O(1).
+     */
+    @Override
+    public synchronized int getPeak()
+    {
+        if (levelCount == 0) return 0;
+        int top = levelCount - 1;
+        int peak = 0;
+        for (int i = 0; i < levelCounts[top]; i++) {
+            peak = Math.max(peak, Math.max(maxLevels[top][i], -(int) minLevels[top][i]));
+        }
+        return peak;
+    }
+
+    /**
+     * @return whether raw samples back this pyramid, i.e. it was built in one go and can no
+     * longer be appended to.
+     */
+    public boolean hasSamples()
+    {
+        return samples != null;
+    }
+
+    /**
+     * Folds {@code length} interleaved samples into the pyramid in amortized O(length).
+     */
+    public synchronized void append(short[] data, int offset, int length)
+    {
+        if (samples != null)
+            throw new IllegalStateException("Cannot append to a pyramid built from a sample array");
+        if (length <= 0) return;
+
+        long blockSamples = (long) BASE_BLOCK_SIZE * channels;
+        int firstBlock = (int) (sampleCount / blockSamples);
+        int block = firstBlock;
+        int i = offset, end = offset + length;
+        while (i < end) {
+            int fill = (int) (sampleCount % blockSamples);
+            if (fill == 0) {
+                ensureCapacity(0, block + 1);
+                maxLevels[0][block] = Short.MIN_VALUE;
+                minLevels[0][block] = Short.MAX_VALUE;
+                levelCounts[0] = block + 1;
+            }
+            int chunk = (int) Math.min(end - i, blockSamples - fill);
+            short max = maxLevels[0][block], min = minLevels[0][block];
+            for (int j = i; j < i + chunk; j++) {
+                short a = data[j];
+                if (a > max) max = a;
+                if (a < min) min = a;
+            }
+            maxLevels[0][block] = max;
+            minLevels[0][block] = min;
+            i += chunk;
+            sampleCount += chunk;
+            if (sampleCount % blockSamples == 0) {
+                long blockStart = (long) block * BASE_BLOCK_SIZE;
+                activityIndex.addBlock(blockStart, blockStart + BASE_BLOCK_SIZE, max, min);
+                block++;
+            }
+        }
+        frameCount = sampleCount / channels;
+        levelCount = Math.max(levelCount, 1);
+
+        int lastBlock = levelCounts[0] - 1;
+        propagate(firstBlock, lastBlock);
+    }
+
+    // Recomputes the parents of level-0 blocks [first, last] up to the top of the pyramid.
+    private void propagate(int first, int last)
+    {
+        int level = 0;
+        while (levelCounts[level] > 1) {
+            int parentCount = (levelCounts[level] + 1) / 2;
+            ensureCapacity(level + 1, parentCount);
+            short[] lowerMax = maxLevels[level], lowerMin = minLevels[level];
+            int lowerCount = levelCounts[level];
+            first >>= 1;
+            last >>= 1;
+            for (int p = first; p <= last; p++) {
+                int a = p * 2, b = Math.min(a + 1, lowerCount - 1);
+                maxLevels[level + 1][p] = (short) Math.max(lowerMax[a], lowerMax[b]);
+                minLevels[level + 1][p] = (short) Math.min(lowerMin[a], lowerMin[b]);
+            }
+            levelCounts[level + 1] = parentCount;
+            level++;
+        }
+        levelCount = level + 1;
+    }
+
+    private void ensureCapacity(int level, int count)
+    {
+        short[] max = maxLevels[level];
+        if (max == null) {
+            maxLevels[level] = new short[Math.max(INITIAL_CAPACITY, count)];
+            minLevels[level] = new short[Math.max(INITIAL_CAPACITY, count)];
+        } else if (max.length < count) {
+            int capacity = Math.max(max.length * 2, count);
+            maxLevels[level] = Arrays.copyOf(max, capacity);
+            minLevels[level] = Arrays.copyOf(minLevels[level], capacity);
+        }
+    }
+
+    /**
+     * Summarizes frames {@code [fromFrame, toFrame)} into {@code out} as {max, min}. Partial
+     * blocks at either edge are read from the raw samples when available so the result is
+     * exact; live pyramids widen them to whole blocks instead.
+     */
+    @Override
+    public synchronized void getExtremes(long fromFrame, long toFrame, short[] out)
+    {
+        fromFrame = Math.max(fromFrame, 0);
+        toFrame = Math.min(toFrame, frameCount);
+        if (fromFrame >= toFrame) {
+            out[0] = out[1] = 0;
+            return;
+        }
+
+        extremes[0] = Short.MIN_VALUE;
+        extremes[1] = Short.MAX_VALUE;
+
+        long headEnd = Math.min(toFrame, alignUp(fromFrame));
+        foldEdge(fromFrame, headEnd);
+        if (headEnd < toFrame) {
+            long tailStart = Math.max(headEnd, (toFrame / BASE_BLOCK_SIZE) * BASE_BLOCK_SIZE);
+            foldEdge(tailStart, toFrame);
+            foldBlocks(headEnd / BASE_BLOCK_SIZE, tailStart / BASE_BLOCK_SIZE);
+        }
+
+        out[0] = extremes[0];
+        out[1] = extremes[1];
+    }
+
+    /**
+     * Fills one {max, min} pair per column for the window of {@code timeline}.
+     */
+    public void getExtremes(Timeline timeline, int columns, short[] outMax, short[] outMin)
+    {
+        getExtremes(timeline, 0, columns, outMax, outMin);
+    }
+
+    /**
+     * Fills columns {@code [fromColumn, toColumn)} only, e.g. the tail touched by an append.
+     */
+    @Override
+    public synchronized void getExtremes(Timeline timeline, int fromColumn, int toColumn,
+                                         short[] outMax, short[] outMin)
+    {
+        long from = timeline.columnToFrame(fromColumn);
+        for (int x = fromColumn; x < toColumn; x++) {
+            long to = timeline.columnToFrame(x + 1);
+            getExtremes(from, to, column);
+            outMax[x] = column[0];
+            outMin[x] = column[1];
+            from = to;
+        }
+    }
+
+    private void foldEdge(long fromFrame, long toFrame)
+    {
+        if (fromFrame >= toFrame) return;
+        if (samples != null) {
+            SamplingUtils.foldExtremes(samples, channels, fromFrame, toFrame, extremes);
+        } else {
+            int block = (int) (fromFrame / BASE_BLOCK_SIZE);
+            extremes[0] = (short) Math.max(extremes[0], maxLevels[0][block]);
+            extremes[1] = (short) Math.min(extremes[1], minLevels[0][block]);
+        }
+    }
+
+    // Folds level-0 blocks [i, j), climbing a level whenever both ends are pair-aligned.
+    private void foldBlocks(long i, long j)
+    {
+        int level = 0;
+        short max = extremes[0], min = extremes[1];
+        while (i < j) {
+            if (level + 1 < levelCount && j - i >= 2) {
+                if ((i & 1) != 0) {
+                    max = (short) Math.max(max, maxLevels[level][(int) i]);
+                    min = (short) Math.min(min, minLevels[level][(int) i]);
+                    i++;
+                }
+                if ((j & 1) != 0) {
+                    j--;
+                    max = (short) Math.max(max, maxLevels[level][(int) j]);
+                    min = (short) Math.min(min, minLevels[level][(int) j]);
+                }
+                i >>= 1;
+                j >>= 1;
+                level++;
+            } else {
+                for (long k = i; k < j; k++) {
+                    max = (short) Math.max(max, maxLevels[level][(int) k]);
+                    min = (short) Math.min(min, minLevels[level][(int) k]);
+                }
+                break;
+            }
+        }
+        extremes[0] = max;
+        extremes[1] = min;
+    }
+
+    private static long alignUp(long frame)
+    {
+        return ((frame + BASE_BLOCK_SIZE - 1) / BASE_BLOCK_SIZE) * BASE_BLOCK_SIZE;
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.teocci.waveform;
+
+/**
+ * Min/max summary that a {@link WaveformView} can render from. {@link PeakPyramid} is the
+ * exact, growable form; {@link QuantizedPeaks} is a compact read-only copy of it.
+ */
+public interface PeakSource
+{
+    long getFrameCount();
+
+    /**
+     * @return the largest absolute sample of the recording.
+     */
+    int getPeak();
+
+    /**
+     * Summarizes frames {@code [fromFrame, toFrame)} into {@code out} as {max, min}.
+     */
+    void getExtremes(long fromFrame, long toFrame, short[] out);
+
+    /**
+     * Fills one {max, min} pair for each of the columns {@code [fromColumn, toColumn)} of the
+     * window of {@code timeline}.
+     */
+    void getExtremes(Timeline timeline, int fromColumn, int toColumn, short[] outMax, short[] outMin);
+}
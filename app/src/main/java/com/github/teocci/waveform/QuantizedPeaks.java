@@ -0,0 +1,248 @@
+package com.github.teocci.waveform;
+
+/**
+ * Read-only copy of a {@link PeakPyramid} with every {max, min} pair quantized to 8 bits,
+ * which halves its footprint. All levels live in two flat arrays, one for the maxima and one
+ * for the minima, so a query is a run of branch-free byte comparisons over contiguous memory
+ * that the JIT can unroll and vectorize.
+ *
+ * Values are quantized through a monotonic 256-entry codebook, either linear or logarithmic
+ * (mu-law, finer near silence). Maxima round up and minima round down, so the decoded
+ * envelope always contains the exact one and folding can be done on the codes themselves.
+ * Ranges resolve to whole blocks, like a live pyramid. Overviews of long takes rarely need
+ * the finest levels, so they can be left out to quarter the size again with each level.
+ */
+public class QuantizedPeaks implements PeakSource
+{
+    public static final int SCALE_LINEAR = 0;
+    public static final int SCALE_LOG = 1;
+
+    private static final double MU = 255;
+    // Packed codes of an empty range: code 0 decodes to 0 on both scales.
+    private static final int EMPTY_CODES = 0;
+
+    private static final short[] LINEAR_CODEBOOK = createCodebook(SCALE_LINEAR);
+    private static final short[] LOG_CODEBOOK = createCodebook(SCALE_LOG);
+
+    private final int scale;
+    // Decoded value of each code, indexed by code + 128.
+    private final short[] codebook;
+    private final long frameCount;
+    private final long blockSize;
+    private final int levelCount;
+    private final int[] levelOffsets;
+    private final int[] levelCounts;
+    private final byte[] maxCodes;
+    private final byte[] minCodes;
+    private final int peak;
+
+    public QuantizedPeaks(PeakPyramid pyramid, int scale)
+    {
+        this(pyramid, scale, 0);
+    }
+
+    /**
+     * @param firstLevel the finest pyramid level kept; blocks are
+     *                   {@code BASE_BLOCK_SIZE << firstLevel} frames.
+     */
+    public QuantizedPeaks(PeakPyramid pyramid, int scale, int firstLevel)
+    {
+        this.scale = scale;
+        this.codebook = scale == SCALE_LOG ? LOG_CODEBOOK : LINEAR_CODEBOOK;
+
+        synchronized (pyramid) {
+            firstLevel = Math.max(0, Math.min(firstLevel, pyramid.getLevelCount() - 1));
+            frameCount = pyramid.getFrameCount();
+            blockSize = pyramid.getBlockSize(firstLevel);
+            levelCount = pyramid.getLevelCount() - firstLevel;
+            levelOffsets = new int[levelCount];
+            levelCounts = new int[levelCount];
+            int total = 0;
+            for (int level = 0; level < levelCount; level++) {
+                levelOffsets[level] = total;
+                levelCounts[level] = pyramid.getBlockCount(firstLevel + level);
+                total += levelCounts[level];
+            }
+
+            maxCodes = new byte[total];
+            minCodes = new byte[total];
+            for (int level = 0; level < levelCount; level++) {
+                short[] max = pyramid.getMaxLevel(firstLevel + level);
+                short[] min = pyramid.getMinLevel(firstLevel + level);
+                int offset = levelOffsets[level];
+                for (int i = 0; i < levelCounts[level]; i++) {
+                    maxCodes[offset + i] = encodeUp(max[i]);
+                    minCodes[offset + i] = encodeDown(min[i]);
+                }
+            }
+        }
+
+        int top = levelCount - 1;
+        peak = top < 0 ? 0 : Math.max(decode(maxCodes[levelOffsets[top]]),
+                -(int) decode(minCodes[levelOffsets[top]]));
+    }
+
+    public int getScale()
+    {
+        return scale;
+    }
+
+    @Override
+    public long getFrameCount()
+    {
+        return frameCount;
+    }
+
+    /**
+     * @return the frames summarized by each entry of the finest level kept.
+     */
+    public long getBlockSize()
+    {
+        return blockSize;
+    }
+
+    @Override
+    public int getPeak()
+    {
+        return peak;
+    }
+
+    /**
+     * @return the bytes held by the peak arrays.
+     */
+    public long getSizeInBytes()
+    {
+        return maxCodes.length + minCodes.length + 8L * levelCount;
+    }
+
+    @Override
+    public void getExtremes(long fromFrame, long toFrame, short[] out)
+    {
+        int codes = foldCodes(fromFrame, toFrame);
+        out[0] = decodeMax(codes);
+        out[1] = decodeMin(codes);
+    }
+
+    @Override
+    public void getExtremes(Timeline timeline, int fromColumn, int toColumn,
+                            short[] outMax, short[] outMin)
+    {
+        long from = timeline.columnToFrame(fromColumn);
+        for (int x = fromColumn; x < toColumn; x++) {
+            long to = timeline.columnToFrame(x + 1);
+            int codes = foldCodes(from, to);
+            outMax[x] = decodeMax(codes);
+            outMin[x] = decodeMin(codes);
+            from = to;
+        }
+    }
+
+    /**
+     * Folds frames {@code [fromFrame, toFrame)} and returns the max code in bits 8-15 and the
+     * min code in bits 0-7, so no scratch array is needed and the instance stays immutable.
+     */
+    private int foldCodes(long fromFrame, long toFrame)
+    {
+        fromFrame = Math.max(fromFrame, 0);
+        toFrame = Math.min(toFrame, frameCount);
+        if (fromFrame >= toFrame)
+            return EMPTY_CODES;
+
+        long i = fromFrame / blockSize;
+        long j = (toFrame + blockSize - 1) / blockSize;
+        final byte[] maxCodes = this.maxCodes, minCodes = this.minCodes;
+        int max = Byte.MIN_VALUE, min = Byte.MAX_VALUE;
+        int level = 0;
+        while (i < j) {
+            int offset = levelOffsets[level];
+            if (level + 1 < levelCount && j - i >= 2) {
+                if ((i & 1) != 0) {
+                    max = Math.max(max, maxCodes[offset + (int) i]);
+                    min = Math.min(min, minCodes[offset + (int) i]);
+                    i++;
+                }
+                if ((j & 1) != 0) {
+                    j--;
+                    max = Math.max(max, maxCodes[offset + (int) j]);
+                    min = Math.min(min, minCodes[offset + (int) j]);
+                }
+                i >>= 1;
+                j >>= 1;
+                level++;
+            } else {
+                for (int k = offset + (int) i, end = offset + (int) j; k < end; k++) {
+                    max = Math.max(max, maxCodes[k]);
+                    min = Math.min(min, minCodes[k]);
+                }
+                break;
+            }
+        }
+        return pack(max, min);
+    }
+
+    private static int pack(int maxCode, int minCode)
+    {
+        return ((maxCode & 0xFF) << 8) | (minCode & 0xFF);
+    }
+
+    private short decodeMax(int codes)
+    {
+        return decode((byte) (codes >> 8));
+    }
+
+    private short decodeMin(int codes)
+    {
+        return decode((byte) codes);
+    }
+
+    private short decode(int code)
+    {
+        return codebook[code + 128];
+    }
+
+    // Smallest code whose value is at least the sample.
+    private byte encodeUp(short value)
+    {
+        int low = 0, high = codebook.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (codebook[mid] >= value) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return (byte) (low - 128);
+    }
+
+    // Largest code whose value is at most the sample.
+    private byte encodeDown(short value)
+    {
+        int low = 0, high = codebook.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (codebook[mid] <= value) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return (byte) (low - 128);
+    }
+
+    private static short[] createCodebook(int scale)
+    {
+        short[] codebook = new short[256];
+        for (int code = -128; code <= 127; code++) {
+            double level = Math.abs(code) / 127.0;
+            if (scale == SCALE_LOG) {
+                level = (Math.pow(1 + MU, level) - 1) / MU;
+            }
+            long value = Math.round(Math.signum(code) * level * Short.MAX_VALUE);
+            codebook[code + 128] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+        // Code -128 has to cover the most negative sample.
+        codebook[0] = Short.MIN_VALUE;
+        return codebook;
+    }
+}
@@ -0,0 +1,201 @@
+package com.github.teocci.waveform;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+import java.util.Arrays;
+
+/**
+ * Draws the time axis of a {@link Timeline}. The tick interval is the smallest "nice" step
+ * (1 ms up to hours) whose label still fits between two ticks at the current zoom. Labels are
+ * composed into reusable char buffers and kept in a small direct-mapped cache, and the width
+ * of each label layout is measured once, so drawing never formats strings or allocates.
+ */
+public class TimeAxisRenderer
+{
+    private static final long[] TICK_INTERVALS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500,
+            1000, 2000, 5000, 10000, 15000, 30000,
+            60000, 120000, 300000, 600000, 900000, 1800000,
+            3600000, 7200000, 10800000, 21600000, 43200000, 86400000
+    };
+
+    // Minimum free space between two labels, as a fraction of the label width.
+    private static final float LABEL_SPACING = 0.5f;
+
+    private static final int MAX_LABEL_LENGTH = 16;
+    private static final int CACHE_SIZE = 64;
+    private static final int CACHE_MASK = CACHE_SIZE - 1;
+
+    // Layout id = hourDigits * 8 + (minutes ? 4 : 0) + fractionDigits
+    private static final int LAYOUT_COUNT = 4 * 8;
+
+    private final Paint paint;
+    private final float[] layoutWidths = new float[LAYOUT_COUNT];
+    private final char[] template = new char[MAX_LABEL_LENGTH];
+
+    private final long[] cachedTimes = new long[CACHE_SIZE];
+    private final int[] cachedLayouts = new int[CACHE_SIZE];
+    private final int[] cachedLengths = new int[CACHE_SIZE];
+    private final char[][] cachedLabels = new char[CACHE_SIZE][MAX_LABEL_LENGTH];
+
+    private long tickInterval;
+
+    public TimeAxisRenderer(Paint paint)
+    {
+        this.paint = paint;
+        invalidateMetrics();
+    }
+
+    /**
+     * Drops measured label widths and cached labels; call after changing the paint's text size
+     * or typeface.
+     */
+    public void invalidateMetrics()
+    {
+        Arrays.fill(layoutWidths, -1);
+        Arrays.fill(cachedLayouts, -1);
+    }
+
+    /**
+     * @return the tick interval in milliseconds chosen by the last {@link #draw} call.
+     */
+    public long getTickInterval()
+    {
+        return tickInterval;
+    }
+
+    public void draw(Canvas canvas, Timeline timeline, float baseline)
+    {
+        int width = timeline.getWidth();
+        if (width <= 0 || !timeline.isValid() || timeline.getVisibleFrameCount() <= 0) return;
+
+        long startMillis = timeline.framesToMillis(timeline.getVisibleStartFrame());
+        long endMillis = timeline.framesToMillis(timeline.getVisibleEndFrame());
+        double visibleMillis = Math.max(1, endMillis - startMillis);
+
+        int hourDigits = countDigits(endMillis / 3600000);
+        boolean minutes = endMillis >= 60000;
+        if (endMillis < 3600000) hourDigits = 0;
+
+        long interval = TICK_INTERVALS[TICK_INTERVALS.length - 1];
+        int layout = layoutId(hourDigits, minutes, 0);
+        for (long candidate : TICK_INTERVALS) {
+            int candidateLayout = layoutId(hourDigits, minutes, fractionDigits(candidate));
+            float labelWidth = getLayoutWidth(candidateLayout);
+            if (candidate * width / visibleMillis >= labelWidth * (1 + LABEL_SPACING)) {
+                interval = candidate;
+                layout = candidateLayout;
+                break;
+            }
+        }
+        tickInterval = interval;
+
+        int sampleRate = timeline.getSampleRate();
+        for (long tick = ((startMillis + interval - 1) / interval) * interval; tick <= endMillis;
+             tick += interval) {
+            int slot = (int) ((tick / interval) & CACHE_MASK);
+            if (cachedLayouts[slot] != layout || cachedTimes[slot] != tick) {
+                cachedLengths[slot] = composeLabel(tick, layout, cachedLabels[slot]);
+                cachedTimes[slot] = tick;
+                cachedLayouts[slot] = layout;
+            }
+            float x = timeline.frameToX((tick * sampleRate) / 1000);
+            canvas.drawText(cachedLabels[slot], 0, cachedLengths[slot], x, baseline, paint);
+        }
+    }
+
+    private float getLayoutWidth(int layout)
+    {
+        if (layoutWidths[layout] < 0) {
+            // Digits are tabular in the default fonts, so any label with the most digits the
+            // layout can produce is as wide as the widest one.
+            int length = composeLabel(templateMillis(layout), layout, template);
+            layoutWidths[layout] = paint.measureText(template, 0, length);
+        }
+        return layoutWidths[layout];
+    }
+
+    private static long templateMillis(int layout)
+    {
+        int hourDigits = layout / 8;
+        if (hourDigits > 0) {
+            long hours = 1;
+            for (int i = 1; i < hourDigits; i++) {
+                hours *= 10;
+            }
+            return hours * 3600000;
+        }
+        return (layout & 4) != 0 ? 600000 : 10000;
+    }
+
+    private static int layoutId(int hourDigits, boolean minutes, int fractionDigits)
+    {
+        return Math.min(hourDigits, 3) * 8 + (minutes ? 4 : 0) + fractionDigits;
+    }
+
+    private static int fractionDigits(long interval)
+    {
+        if (interval >= 1000) return 0;
+        if (interval >= 100) return 1;
+        if (interval >= 10) return 2;
+        return 3;
+    }
+
+    private static int countDigits(long value)
+    {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Writes {@code millis} as [h:]m:ss[.fff] (or s[.fff] below one minute) using the given
+     * layout and returns the label length.
+     */
+    private static int composeLabel(long millis, int layout, char[] out)
+    {
+        int hourDigits = layout / 8;
+        boolean minutes = (layout & 4) != 0;
+        int fractionDigits = layout & 3;
+
+        long totalSeconds = millis / 1000;
+        int pos = 0;
+        if (hourDigits > 0) {
+            pos = writeNumber(totalSeconds / 3600, out, pos, 1);
+            out[pos++] = ':';
+            pos = writeNumber((totalSeconds / 60) % 60, out, pos, 2);
+            out[pos++] = ':';
+            pos = writeNumber(totalSeconds % 60, out, pos, 2);
+        } else if (minutes) {
+            pos = writeNumber(totalSeconds / 60, out, pos, 1);
+            out[pos++] = ':';
+            pos = writeNumber(totalSeconds % 60, out, pos, 2);
+        } else {
+            pos = writeNumber(totalSeconds, out, pos, 1);
+        }
+
+        if (fractionDigits > 0) {
+            out[pos++] = '.';
+            long fraction = millis % 1000;
+            for (int i = fractionDigits; i < 3; i++) {
+                fraction /= 10;
+            }
+            pos = writeNumber(fraction, out, pos, fractionDigits);
+        }
+        return pos;
+    }
+
+    private static int writeNumber(long value, char[] out, int pos, int minDigits)
+    {
+        int digits = Math.max(countDigits(value), minDigits);
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            out[i] = (char) ('0' + (value % 10));
+            value /= 10;
+        }
+        return pos + digits;
+    }
+}
@@ -0,0 +1,144 @@
+package com.github.teocci.waveform;
+
+import com.github.teocci.waveform.utils.AudioUtils;
+
+/**
+ * Sample-accurate time model shared by the view, the marker and the peak pyramid.
+ * Every position is a {@code long} frame index (one frame = one sample per channel),
+ * so multi-hour sessions never overflow, and all sample/pixel/time conversions are
+ * derived from integer frame math instead of accumulated floats.
+ */
+public class Timeline
+{
+    private int sampleRate;
+    private int channels = 1;
+    private long frameCount;
+
+    // Visible window; a non-positive count means "show everything".
+    private long viewStartFrame;
+    private long viewFrameCount;
+    private int width;
+
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    public void setSampleRate(int sampleRate)
+    {
+        this.sampleRate = sampleRate;
+    }
+
+    public int getChannels()
+    {
+        return channels;
+    }
+
+    public void setChannels(int channels)
+    {
+        this.channels = channels;
+    }
+
+    public long getFrameCount()
+    {
+        return frameCount;
+    }
+
+    public void setFrameCount(long frameCount)
+    {
+        this.frameCount = frameCount;
+    }
+
+    public void setSampleCount(long samplesCount)
+    {
+        frameCount = channels > 0 ? samplesCount / channels : 0;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public void setWidth(int width)
+    {
+        this.width = width;
+    }
+
+    public boolean isValid()
+    {
+        return sampleRate > 0 && channels > 0;
+    }
+
+    /**
+     * Restricts the visible window to {@code [startFrame, startFrame + count)}. Passing a
+     * non-positive count resets the window to the full timeline.
+     */
+    public void setVisibleRange(long startFrame, long count)
+    {
+        viewStartFrame = Math.max(0, startFrame);
+        viewFrameCount = count;
+    }
+
+    public long getVisibleStartFrame()
+    {
+        return viewFrameCount > 0 ? viewStartFrame : 0;
+    }
+
+    public long getVisibleFrameCount()
+    {
+        return viewFrameCount > 0 ? viewFrameCount : frameCount;
+    }
+
+    public long getVisibleEndFrame()
+    {
+        return getVisibleStartFrame() + getVisibleFrameCount();
+    }
+
+    public long getDurationMillis()
+    {
+        return isValid() ? AudioUtils.framesToMillis(frameCount, sampleRate) : 0;
+    }
+
+    public long framesToMillis(long frames)
+    {
+        return AudioUtils.framesToMillis(frames, sampleRate);
+    }
+
+    public long millisToFrames(long millis)
+    {
+        return AudioUtils.millisToFrames(millis, sampleRate);
+    }
+
+    public double framesToSeconds(long frames)
+    {
+        return AudioUtils.framesToSeconds(frames, sampleRate);
+    }
+
+    /**
+     * First frame drawn in {@code column}. Columns partition the visible window exactly,
+     * so the last column always ends on the last visible frame and nothing drifts.
+     */
+    public long columnToFrame(int column)
+    {
+        if (width <= 0) return getVisibleStartFrame();
+        return getVisibleStartFrame() + (column * getVisibleFrameCount()) / width;
+    }
+
+    public float frameToX(long frame)
+    {
+        long count = getVisibleFrameCount();
+        if (count <= 0) return 0;
+        return (float) ((double) (frame - getVisibleStartFrame()) * width / count);
+    }
+
+    public long xToFrame(float x)
+    {
+        if (width <= 0) return getVisibleStartFrame();
+        return getVisibleStartFrame() + (long) Math.floor((double) x * getVisibleFrameCount() / width);
+    }
+
+    public boolean isVisible(long frame)
+    {
+        return frame >= getVisibleStartFrame() && frame < getVisibleEndFrame();
+    }
+}
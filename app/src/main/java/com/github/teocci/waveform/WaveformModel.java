@@ -0,0 +1,251 @@
+package com.github.teocci.waveform;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples, peaks and activity index of one recording, shared by every
+ * {@link WaveformView} that shows it. Models are reference counted: each attached view and
+ * each owner holds one reference, and models published with {@link #register} can be
+ * looked up by key from anywhere in the process, so an Activity that is recreated, or a
+ * second view of the same audio, reuses the decoded data instead of loading it again.
+ *
+ * Only the data is shared. The peaks do not depend on any view's width or zoom, so every
+ * view resamples them into its own columns in O(log n) each and renders into its own bitmap
+ * or picture.
+ */
+public class WaveformModel
+{
+    public interface Observer
+    {
+        /**
+         * Called on the thread that changed the model.
+         *
+         * @param firstDirtyFrame the first frame whose peaks changed.
+         */
+        void onWaveformChanged(WaveformModel model, long firstDirtyFrame);
+    }
+
+    private static final Map<String, WaveformModel> registry = new HashMap<>();
+
+    private volatile short[] samples;
+    private final int sampleRate;
+    private final int channels;
+    private final ActivityIndex activityIndex;
+    private volatile PeakPyramid peakPyramid;
+    private volatile PeakSource peaks;
+    // Serializes appends with compaction, which discards the pyramid being appended to.
+    private final Object peaksLock = new Object();
+
+    private final List<Observer> observers = new ArrayList<>();
+
+    private String key;
+    private int refCount;
+
+    /**
+     * Creates a model over a complete recording.
+     */
+    public WaveformModel(short[] samples, int sampleRate, int channels)
+    {
+        this.samples = samples;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.peakPyramid = new PeakPyramid(samples, channels);
+        this.peaks = peakPyramid;
+        this.activityIndex = peakPyramid.getActivityIndex();
+    }
+
+    /**
+     * Creates an empty live model to be filled with {@link #append}.
+     */
+    public WaveformModel(int sampleRate, int channels)
+    {
+        this.samples = null;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.peakPyramid = new PeakPyramid(channels);
+        this.peaks = peakPyramid;
+        this.activityIndex = peakPyramid.getActivityIndex();
+    }
+
+    /**
+     * @return the model registered under {@code key} with one more reference, or null.
+     */
+    public static WaveformModel acquire(String key)
+    {
+        synchronized (registry) {
+            WaveformModel model = registry.get(key);
+            return model != null ? model.retain() : null;
+        }
+    }
+
+    /**
+     * Publishes {@code model} under {@code key} and returns it with one reference held by the
+     * caller. The model leaves the registry once its last reference is released.
+     */
+    public static WaveformModel register(String key, WaveformModel model)
+    {
+        synchronized (registry) {
+            model.key = key;
+            registry.put(key, model);
+            return model.retain();
+        }
+    }
+
+    public WaveformModel retain()
+    {
+        synchronized (registry) {
+            refCount++;
+        }
+        return this;
+    }
+
+    public void release()
+    {
+        synchronized (registry) {
+            if (refCount == 0) return;
+            if (--refCount > 0) return;
+            if (key != null && registry.get(key) == this) {
+                registry.remove(key);
+            }
+        }
+    }
+
+    public int getRefCount()
+    {
+        synchronized (registry) {
+            return refCount;
+        }
+    }
+
+    /**
+     * @return the samples of a complete recording, or null for live and compacted models.
+     */
+    public short[] getSamples()
+    {
+        return samples;
+    }
+
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    public int getChannels()
+    {
+        return channels;
+    }
+
+    public long getFrameCount()
+    {
+        return peaks.getFrameCount();
+    }
+
+    /**
+     * @return the exact pyramid, or null once the model has been {@link #compact compacted}.
+     */
+    public PeakPyramid getPeakPyramid()
+    {
+        return peakPyramid;
+    }
+
+    /**
+     * @return the peaks to render from, exact or quantized.
+     */
+    public PeakSource getPeaks()
+    {
+        return peaks;
+    }
+
+    public ActivityIndex getActivityIndex()
+    {
+        return activityIndex;
+    }
+
+    public boolean isCompact()
+    {
+        return peakPyramid == null;
+    }
+
+    /**
+     * Replaces the exact pyramid by an 8-bit {@link QuantizedPeaks} copy, e.g. once a take has
+     * been recorded and only stays open for its overview. The model also lets go of its
+     * samples, so only the quantized peaks and the activity index stay in memory; anyone still
+     * playing the audio has to hold the sample array itself. The model can no longer be
+     * appended to and edges resolve to whole blocks.
+     *
+     * @param scale {@link QuantizedPeaks#SCALE_LINEAR} or {@link QuantizedPeaks#SCALE_LOG}.
+     */
+    public void compact(int scale)
+    {
+        compact(scale, 0);
+    }
+
+    /**
+     * @param firstLevel the finest pyramid level to keep, see {@link QuantizedPeaks}.
+     */
+    public void compact(int scale, int firstLevel)
+    {
+        synchronized (peaksLock) {
+            PeakPyramid pyramid = peakPyramid;
+            if (pyramid == null) return;
+            peaks = new QuantizedPeaks(pyramid, scale, firstLevel);
+            peakPyramid = null;
+            samples = null;
+        }
+        notifyObservers(0);
+    }
+
+    /**
+     * @return whether the model is still being filled with {@link #append}.
+     */
+    public boolean isLive()
+    {
+        return samples == null && peakPyramid != null;
+    }
+
+    /**
+     * Appends captured samples to a live model and notifies the observers.
+     */
+    public void append(short[] data, int offset, int length)
+    {
+        long firstDirtyFrame;
+        synchronized (peaksLock) {
+            PeakPyramid pyramid = peakPyramid;
+            if (pyramid == null)
+                throw new IllegalStateException("Cannot append to a compacted model");
+            firstDirtyFrame = pyramid.getFrameCount();
+            pyramid.append(data, offset, length);
+        }
+        notifyObservers(firstDirtyFrame);
+    }
+
+    public void addObserver(Observer observer)
+    {
+        synchronized (observers) {
+            if (!observers.contains(observer)) {
+                observers.add(observer);
+            }
+        }
+    }
+
+    public void removeObserver(Observer observer)
+    {
+        synchronized (observers) {
+            observers.remove(observer);
+        }
+    }
+
+    private void notifyObservers(long firstDirtyFrame)
+    {
+        Observer[] snapshot;
+        synchronized (observers) {
+            snapshot = observers.toArray(new Observer[observers.size()]);
+        }
+        for (Observer observer : snapshot) {
+            observer.onWaveformChanged(this, firstDirtyFrame);
+        }
+    }
+}
@@ -4,19 +4,22 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Picture;
 import android.graphics.Rect;
 import android.os.Build;
+import android.os.Looper;
 import android.support.v4.content.ContextCompat;
 import android.text.TextPaint;
 import android.util.AttributeSet;
+import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewConfiguration;
+import android.view.ViewParent;
 
 import com.github.teocci.audiotrackwaveform.R;
-import com.github.teocci.waveform.utils.AudioUtils;
-import com.github.teocci.waveform.utils.SamplingUtils;
 import com.github.teocci.waveform.utils.TextUtils;
 
 import java.util.LinkedList;
@@ -24,31 +27,119 @@ import java.util.LinkedList;
 /**
  * Created by teocci.
  *
+ * Sample blocks, marker moves and model changes may arrive from any thread at any rate. Each
+ * is stored as the latest pending update of its kind and all of them are applied together on
+ * the main thread once per display frame, so producers faster than the display only cost a
+ * copy and superseded updates are never processed.
+ *
  * @author teocci@yandex.com on 2017/Apr/05
  */
 public class WaveformView extends View
 {
+    public interface SelectionListener
+    {
+        /**
+         * Called when the user finishes dragging a selection, or taps to clear it.
+         *
+         * @param startFrame the first selected frame, or -1 when the selection was cleared.
+         * @param endFrame   the frame after the last selected one, or -1.
+         */
+        void onSelectionChanged(WaveformView view, long startFrame, long endFrame);
+    }
+
     public static final int MODE_RECORDING = 1;
     public static final int MODE_PLAYBACK = 2;
 
+    public static final int GAIN_FIXED = 0;
+    public static final int GAIN_GLOBAL = 1;
+    public static final int GAIN_WINDOW = 2;
+
+    public static final int SCALE_LINEAR = 0;
+    public static final int SCALE_DB = 1;
+
     private static final int HISTORY_SIZE = 6;
+    private static final int LIVE_WINDOW_SECONDS = 10;
+    private static final long NO_DIRTY_FRAME = Long.MAX_VALUE;
+    private static final int NO_DIRTY_COLUMN = Integer.MAX_VALUE;
+    // The gain stops growing below this peak so that digital silence is not blown up.
+    private static final int MIN_REFERENCE_PEAK = 64;
+    // Level drawn at the center line when the gain scale is logarithmic.
+    private static final float DB_FLOOR = -60f;
+    // Time for the running peak of recording mode to fall by half.
+    private static final double PEAK_HALF_LIFE_SECONDS = 1;
+    // Assumed when no sample rate was set, to turn captured frames into time.
+    private static final int FALLBACK_SAMPLE_RATE = 44100;
 
     private TextPaint textPaint;
-    private Paint strokePaint, fillPaint, markerPaint;
+    private Paint strokePaint, fillPaint, markerPaint, silencePaint, selectionPaint;
 
     // Used in draw
     private int brightness;
     private Rect drawRect;
 
     private int width, height;
-    private float xStep, centerY;
-    private int mode, audioLength, markerPosition, sampleRate, channels;
+    private float centerY;
+    private int mode;
+    private long markerPosition = -1;
+    private long selectionStart = -1, selectionEnd = -1;
+    private SelectionListener selectionListener;
+    private int touchSlop;
+    private float touchDownX;
+    private long selectionBeforeTouchStart = -1, selectionBeforeTouchEnd = -1;
+    private boolean selecting;
     private short[] sampleRateList;
+    private Timeline timeline = new Timeline();
+    private WaveformModel model;
+    private boolean attached;
+    private short[] columnMax, columnMin;
+    private Path waveformPath = new Path();
+    private long liveWindowFrames;
+    private TimeAxisRenderer axisRenderer;
     private LinkedList<float[]> historicalData;
     private Picture cachedWaveform;
     private Bitmap cachedWaveformBitmap;
     private int colorDelta = 255 / (HISTORY_SIZE + 1);
     private boolean showTextAxis = true;
+    private boolean showSilence = true;
+    private boolean recordingEnvelope;
+    private int envelopeFramesPerColumn = 1;
+    private int autoGain = GAIN_FIXED;
+    private int gainScale = SCALE_LINEAR;
+    private float referencePeak = Short.MAX_VALUE;
+    private float runningPeak;
+
+    // Latest updates not applied yet, guarded by pendingLock.
+    private final Object pendingLock = new Object();
+    private short[] pendingSamples;
+    private boolean hasPendingSamples;
+    // Playback samples set off the main thread; they become a new model on the next frame.
+    private short[] pendingPlaybackSamples;
+    private long pendingBlockFrames, appliedBlockFrames;
+    private long pendingMarker;
+    private boolean hasPendingMarker;
+    private long pendingDirtyFrame = NO_DIRTY_FRAME;
+    private int pendingDirtyColumn = NO_DIRTY_COLUMN;
+    // Live model appendSamples writes to; it may not have reached setModel yet.
+    private WaveformModel appendTarget;
+    private long updateCount, coalescedCount, skippedCount, appliedFrameCount;
+
+    private final FrameScheduler frameScheduler = new FrameScheduler(new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            applyPendingUpdates();
+        }
+    });
+
+    private final WaveformModel.Observer modelObserver = new WaveformModel.Observer()
+    {
+        @Override
+        public void onWaveformChanged(WaveformModel model, long firstDirtyFrame)
+        {
+            postModelChange(firstDirtyFrame);
+        }
+    };
 
     public WaveformView(Context context)
     {
@@ -85,6 +176,13 @@ public class WaveformView extends View
                 ContextCompat.getColor(context, R.color.default_playback_indicator));
         int mTextColor = a.getColor(R.styleable.WaveformView_timecodeColor,
                 ContextCompat.getColor(context, R.color.default_timecode));
+        int mSilenceColor = a.getColor(R.styleable.WaveformView_silenceColor,
+                ContextCompat.getColor(context, R.color.default_silence));
+        int mSelectionColor = a.getColor(R.styleable.WaveformView_selectionColor,
+                ContextCompat.getColor(context, R.color.default_selection));
+
+        autoGain = a.getInt(R.styleable.WaveformView_autoGain, GAIN_FIXED);
+        gainScale = a.getInt(R.styleable.WaveformView_gainScale, SCALE_LINEAR);
 
         a.recycle();
 
@@ -94,6 +192,7 @@ public class WaveformView extends View
         textPaint.setColor(mTextColor);
         textPaint.setTextSize(TextUtils.getFontSize(getContext(),
                 android.R.attr.textAppearanceSmall));
+        axisRenderer = new TimeAxisRenderer(textPaint);
 
         strokePaint = new Paint();
         strokePaint.setColor(mStrokeColor);
@@ -111,6 +210,16 @@ public class WaveformView extends View
         markerPaint.setStrokeWidth(0);
         markerPaint.setAntiAlias(true);
         markerPaint.setColor(mMarkerColor);
+
+        silencePaint = new Paint();
+        silencePaint.setStyle(Paint.Style.FILL);
+        silencePaint.setColor(mSilenceColor);
+
+        selectionPaint = new Paint();
+        selectionPaint.setStyle(Paint.Style.FILL);
+        selectionPaint.setColor(mSelectionColor);
+
+        touchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
     }
 
     @Override
@@ -120,7 +229,7 @@ public class WaveformView extends View
 
         width = getMeasuredWidth();
         height = getMeasuredHeight();
-        xStep = width / (audioLength * 1.0f);
+        timeline.setWidth(width);
         centerY = height / 2f;
         drawRect = new Rect(0, 0, width, height);
 
@@ -132,6 +241,29 @@ public class WaveformView extends View
         }
     }
 
+    @Override
+    protected void onAttachedToWindow()
+    {
+        super.onAttachedToWindow();
+        attached = true;
+        if (model != null) {
+            bindModel();
+        }
+        // Updates that arrived while detached are still pending.
+        frameScheduler.schedule();
+    }
+
+    @Override
+    protected void onDetachedFromWindow()
+    {
+        super.onDetachedFromWindow();
+        attached = false;
+        frameScheduler.cancel();
+        if (model != null) {
+            unbindModel();
+        }
+    }
+
     @Override
     protected void onDraw(Canvas canvas)
     {
@@ -151,9 +283,71 @@ public class WaveformView extends View
             } else if (cachedWaveformBitmap != null) {
                 canvas.drawBitmap(cachedWaveformBitmap, null, drawRect, null);
             }
-            if (markerPosition > -1 && markerPosition < audioLength)
-                canvas.drawLine(xStep * markerPosition, 0, xStep * markerPosition, height, markerPaint);
+            if (selectionEnd > selectionStart) {
+                float left = Math.max(0, timeline.frameToX(selectionStart));
+                float right = Math.min(width, timeline.frameToX(selectionEnd));
+                if (right > left) {
+                    canvas.drawRect(left, 0, right, height, selectionPaint);
+                }
+            }
+            if (markerPosition > -1 && markerPosition < timeline.getFrameCount()
+                    && timeline.isVisible(markerPosition)) {
+                float markerX = timeline.frameToX(markerPosition);
+                canvas.drawLine(markerX, 0, markerX, height, markerPaint);
+            }
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event)
+    {
+        if (mode != MODE_PLAYBACK || selectionListener == null || model == null)
+            return super.onTouchEvent(event);
+
+        float x = Math.max(0, Math.min(event.getX(), width));
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                touchDownX = x;
+                selecting = false;
+                // Restored if the gesture is cancelled, since the listener only hears of
+                // finished selections.
+                selectionBeforeTouchStart = selectionStart;
+                selectionBeforeTouchEnd = selectionEnd;
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                if (!selecting && Math.abs(x - touchDownX) < touchSlop)
+                    return true;
+                if (!selecting) {
+                    selecting = true;
+                    ViewParent parent = getParent();
+                    if (parent != null) {
+                        parent.requestDisallowInterceptTouchEvent(true);
+                    }
+                }
+                long anchor = touchFrame(touchDownX), frame = touchFrame(x);
+                setSelection(Math.min(anchor, frame), Math.max(anchor, frame));
+                return true;
+            case MotionEvent.ACTION_UP:
+                if (!selecting) {
+                    // A tap clears the selection.
+                    setSelection(-1, -1);
+                }
+                selecting = false;
+                selectionListener.onSelectionChanged(this, selectionStart, selectionEnd);
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                if (selecting) {
+                    setSelection(selectionBeforeTouchStart, selectionBeforeTouchEnd);
+                }
+                selecting = false;
+                return true;
         }
+        return super.onTouchEvent(event);
+    }
+
+    private long touchFrame(float x)
+    {
+        return Math.max(0, Math.min(timeline.xToFrame(x), timeline.getFrameCount()));
     }
 
     public int getMode()
@@ -168,70 +362,579 @@ public class WaveformView extends View
 
     public short[] getSamples()
     {
+        if (mode == MODE_PLAYBACK && model != null)
+            return model.getSamples();
         return sampleRateList;
     }
 
+    /**
+     * May be called from any thread. In recording mode the block is copied and drawn on the
+     * next display frame, replacing any block still pending. In playback mode the array is
+     * kept, not copied, and becomes a new model: right away on the main thread, otherwise on
+     * the next display frame, where the latest call wins.
+     */
     public void setSamples(short[] samples)
+    {
+        if (mode == MODE_RECORDING) {
+            postSamples(samples);
+            return;
+        }
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            synchronized (pendingLock) {
+                updateCount++;
+                if (pendingPlaybackSamples != null) {
+                    coalescedCount++;
+                }
+                pendingPlaybackSamples = samples;
+            }
+            frameScheduler.schedule();
+            return;
+        }
+        synchronized (pendingLock) {
+            pendingPlaybackSamples = null;
+        }
+        showPlaybackSamples(samples);
+    }
+
+    private void showPlaybackSamples(short[] samples)
     {
         sampleRateList = samples;
-        calculateAudioLength();
+        timeline.setSampleCount(samples.length);
         onSamplesChanged();
     }
 
-    public int getMarkerPosition()
+    public WaveformModel getModel()
+    {
+        return model;
+    }
+
+    /**
+     * Shows the waveform of a shared model. Several views can show the same model, e.g. an
+     * overview and a zoomed detail, without copying its samples or peaks. While attached to a
+     * window the view holds a reference to the model and follows its changes. Must be called
+     * on the main thread, which owns the timeline and the rendered waveform.
+     */
+    public void setModel(WaveformModel model)
+    {
+        synchronized (pendingLock) {
+            appendTarget = model != null && model.isLive() ? model : null;
+        }
+        if (this.model == model) return;
+        if (this.model != null && attached) {
+            unbindModel();
+        }
+
+        this.model = model;
+        markerPosition = -1;
+        selectionStart = selectionEnd = -1;
+        synchronized (pendingLock) {
+            // Marker moves, changes of the previous model and older samples no longer apply.
+            hasPendingMarker = false;
+            pendingDirtyFrame = NO_DIRTY_FRAME;
+            pendingPlaybackSamples = null;
+        }
+        if (model != null) {
+            timeline.setSampleRate(model.getSampleRate());
+            timeline.setChannels(model.getChannels());
+            timeline.setFrameCount(model.getFrameCount());
+            if (model.isLive()) {
+                liveWindowFrames = Math.max(model.getSampleRate(), 1) * (long) LIVE_WINDOW_SECONDS;
+                while (model.getFrameCount() > liveWindowFrames) {
+                    liveWindowFrames *= 2;
+                }
+                timeline.setVisibleRange(0, liveWindowFrames);
+            } else {
+                liveWindowFrames = 0;
+                timeline.setVisibleRange(0, 0);
+            }
+            if (attached) {
+                bindModel();
+            }
+        }
+
+        requestRender(0);
+    }
+
+    private void bindModel()
+    {
+        model.retain();
+        model.addObserver(modelObserver);
+        // The model may have grown while the view was detached.
+        timeline.setFrameCount(model.getFrameCount());
+        requestRender(0);
+    }
+
+    private void unbindModel()
+    {
+        model.removeObserver(modelObserver);
+        model.release();
+    }
+
+    /**
+     * Appends a captured block to the playback overview. The peaks of the block are folded into
+     * a live {@link WaveformModel} and only the columns it touches are recomputed, so the cost
+     * of an update does not grow with the length of the take. The visible window doubles
+     * whenever the take outgrows it, which is the only time every column is refreshed.
+     *
+     * May be called from the capture thread. When no live model is shown yet one is created
+     * and handed to {@link #setModel} on the main thread; blocks appended in the meantime are
+     * already in it.
+     */
+    public void appendSamples(short[] data, int offset, int length)
+    {
+        if (mode != MODE_PLAYBACK) return;
+
+        final WaveformModel target;
+        boolean created = false;
+        synchronized (pendingLock) {
+            if (appendTarget == null) {
+                appendTarget = new WaveformModel(timeline.getSampleRate(), timeline.getChannels());
+                created = true;
+            }
+            target = appendTarget;
+        }
+        if (created) {
+            post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (pendingLock) {
+                        // A model set in the meantime wins.
+                        if (appendTarget != target) return;
+                    }
+                    sampleRateList = null;
+                    setModel(target);
+                }
+            });
+        }
+        target.append(data, offset, length);
+    }
+
+    /**
+     * Drops the current samples and starts an empty live overview for {@link #appendSamples}.
+     * Must be called on the main thread.
+     */
+    public void clearSamples()
+    {
+        sampleRateList = null;
+        setModel(new WaveformModel(timeline.getSampleRate(), timeline.getChannels()));
+    }
+
+    /**
+     * Follows the growth of a live model.
+     *
+     * @return the first column to re-read from the model, or {@link #NO_DIRTY_COLUMN}.
+     */
+    private int onModelChanged(long firstDirtyFrame)
+    {
+        long frames = model.getFrameCount();
+        timeline.setFrameCount(frames);
+
+        int firstDirtyColumn;
+        if (liveWindowFrames > 0 && frames > liveWindowFrames) {
+            while (frames > liveWindowFrames) {
+                liveWindowFrames *= 2;
+            }
+            timeline.setVisibleRange(0, liveWindowFrames);
+            firstDirtyColumn = 0;
+        } else {
+            // The trailing base block may have been partial, so start from its first frame.
+            long dirtyFrame = (firstDirtyFrame / PeakPyramid.BASE_BLOCK_SIZE) * PeakPyramid.BASE_BLOCK_SIZE;
+            firstDirtyColumn = Math.max(0, (int) Math.floor(timeline.frameToX(dirtyFrame)) - 1);
+        }
+
+        return firstDirtyColumn < width ? firstDirtyColumn : NO_DIRTY_COLUMN;
+    }
+
+    private void postSamples(short[] samples)
+    {
+        synchronized (pendingLock) {
+            updateCount++;
+            if (hasPendingSamples) {
+                coalescedCount++;
+            }
+            if (pendingSamples == null || pendingSamples.length != samples.length) {
+                pendingSamples = new short[samples.length];
+            }
+            System.arraycopy(samples, 0, pendingSamples, 0, samples.length);
+            hasPendingSamples = true;
+            // Coalesced blocks still count as elapsed time for the running peak.
+            pendingBlockFrames += recordingEnvelope
+                    ? (long) (samples.length / 2) * envelopeFramesPerColumn
+                    : samples.length / Math.max(timeline.getChannels(), 1);
+        }
+        frameScheduler.schedule();
+    }
+
+    private void postModelChange(long firstDirtyFrame)
+    {
+        synchronized (pendingLock) {
+            updateCount++;
+            if (pendingDirtyFrame != NO_DIRTY_FRAME) {
+                coalescedCount++;
+            }
+            pendingDirtyFrame = Math.min(pendingDirtyFrame, firstDirtyFrame);
+        }
+        frameScheduler.schedule();
+    }
+
+    /**
+     * Re-renders the playback waveform on the next frame from {@code firstDirtyColumn} on; the
+     * width re-maps the cached columns only.
+     */
+    private void requestRender(int firstDirtyColumn)
+    {
+        if (mode != MODE_PLAYBACK) return;
+        synchronized (pendingLock) {
+            pendingDirtyColumn = Math.min(pendingDirtyColumn, firstDirtyColumn);
+        }
+        frameScheduler.schedule();
+    }
+
+    private void applyPendingUpdates()
+    {
+        boolean samplesChanged, markerChanged;
+        long marker, dirtyFrame;
+        int dirtyColumn;
+        short[] playbackSamples;
+        synchronized (pendingLock) {
+            playbackSamples = pendingPlaybackSamples;
+            pendingPlaybackSamples = null;
+            samplesChanged = hasPendingSamples;
+            if (samplesChanged) {
+                // Swap buffers so the producer never writes into the block being drawn.
+                short[] applied = sampleRateList;
+                sampleRateList = pendingSamples;
+                pendingSamples = applied;
+                hasPendingSamples = false;
+                appliedBlockFrames = pendingBlockFrames;
+                pendingBlockFrames = 0;
+            }
+            markerChanged = hasPendingMarker;
+            marker = pendingMarker;
+            hasPendingMarker = false;
+            dirtyFrame = pendingDirtyFrame;
+            pendingDirtyFrame = NO_DIRTY_FRAME;
+            dirtyColumn = pendingDirtyColumn;
+            pendingDirtyColumn = NO_DIRTY_COLUMN;
+            if (playbackSamples != null || samplesChanged || markerChanged
+                    || dirtyFrame != NO_DIRTY_FRAME || dirtyColumn != NO_DIRTY_COLUMN) {
+                appliedFrameCount++;
+            }
+        }
+
+        if (playbackSamples != null && mode == MODE_PLAYBACK) {
+            showPlaybackSamples(playbackSamples);
+            // The new model replaces the old one's changes; render it in this frame.
+            dirtyFrame = NO_DIRTY_FRAME;
+            synchronized (pendingLock) {
+                dirtyColumn = Math.min(dirtyColumn, pendingDirtyColumn);
+                pendingDirtyColumn = NO_DIRTY_COLUMN;
+            }
+        }
+
+        boolean redraw = false;
+        if (samplesChanged && mode == MODE_RECORDING) {
+            timeline.setSampleCount(sampleRateList.length);
+            onSamplesChanged();
+            redraw = true;
+        }
+        if (dirtyFrame != NO_DIRTY_FRAME && model != null) {
+            dirtyColumn = Math.min(dirtyColumn, onModelChanged(dirtyFrame));
+        }
+        if (dirtyColumn != NO_DIRTY_COLUMN && mode == MODE_PLAYBACK) {
+            createPlaybackWaveform(Math.min(dirtyColumn, width));
+            redraw = true;
+        }
+        if (markerChanged) {
+            boolean visible = markerVisible(markerPosition) || markerVisible(marker);
+            markerPosition = marker;
+            if (visible) {
+                redraw = true;
+            } else {
+                synchronized (pendingLock) {
+                    skippedCount++;
+                }
+            }
+        }
+        if (redraw) {
+            invalidate();
+        }
+    }
+
+    private boolean markerVisible(long position)
+    {
+        return position > -1 && position < timeline.getFrameCount() && timeline.isVisible(position);
+    }
+
+    /**
+     * @return the marker position in frames, or -1 when hidden.
+     */
+    public long getMarkerPosition()
+    {
+        synchronized (pendingLock) {
+            return hasPendingMarker ? pendingMarker : markerPosition;
+        }
+    }
+
+    /**
+     * Moves the marker on the next display frame; only the latest position set before that
+     * frame is drawn.
+     *
+     * @param markerPosition the marker position in frames, or -1 to hide it.
+     */
+    public void setMarkerPosition(long markerPosition)
+    {
+        synchronized (pendingLock) {
+            updateCount++;
+            if (hasPendingMarker) {
+                coalescedCount++;
+            } else if (markerPosition == this.markerPosition) {
+                skippedCount++;
+                return;
+            }
+            pendingMarker = markerPosition;
+            hasPendingMarker = true;
+        }
+        frameScheduler.schedule();
+    }
+
+    /**
+     * @return the sample blocks, marker moves and model changes posted to this view.
+     */
+    public long getUpdateCount()
+    {
+        synchronized (pendingLock) {
+            return updateCount;
+        }
+    }
+
+    /**
+     * @return the updates replaced by a newer one of the same kind before being applied.
+     */
+    public long getCoalescedUpdateCount()
+    {
+        synchronized (pendingLock) {
+            return coalescedCount;
+        }
+    }
+
+    /**
+     * @return the updates dropped because they would not change what is drawn.
+     */
+    public long getSkippedUpdateCount()
+    {
+        synchronized (pendingLock) {
+            return skippedCount;
+        }
+    }
+
+    /**
+     * @return the display frames on which pending updates were applied.
+     */
+    public long getAppliedFrameCount()
     {
-        return markerPosition;
+        synchronized (pendingLock) {
+            return appliedFrameCount;
+        }
+    }
+
+    public void resetUpdateStats()
+    {
+        synchronized (pendingLock) {
+            updateCount = coalescedCount = skippedCount = appliedFrameCount = 0;
+        }
+    }
+
+    /**
+     * @return the first selected frame, or -1 when nothing is selected.
+     */
+    public long getSelectionStart()
+    {
+        return selectionStart;
     }
 
-    public void setMarkerPosition(int markerPosition)
+    /**
+     * @return the frame after the last selected one, or -1 when nothing is selected.
+     */
+    public long getSelectionEnd()
     {
-        this.markerPosition = markerPosition;
+        return selectionEnd;
+    }
+
+    public boolean hasSelection()
+    {
+        return selectionEnd > selectionStart;
+    }
+
+    /**
+     * Selects frames {@code [startFrame, endFrame)} exactly, regardless of the zoom level. An
+     * empty range, e.g. (-1, -1), clears the selection. The listener is not notified.
+     */
+    public void setSelection(long startFrame, long endFrame)
+    {
+        if (startFrame < 0 || endFrame <= startFrame) {
+            selectionStart = selectionEnd = -1;
+        } else {
+            selectionStart = startFrame;
+            selectionEnd = endFrame;
+        }
         postInvalidate();
     }
 
-    public int getAudioLength()
+    /**
+     * Enables selecting a range by dragging across the playback waveform; a tap clears it.
+     */
+    public void setSelectionListener(SelectionListener selectionListener)
     {
-        return audioLength;
+        this.selectionListener = selectionListener;
+    }
+
+    /**
+     * @return the audio length in milliseconds.
+     */
+    public long getAudioLength()
+    {
+        return timeline.getDurationMillis();
+    }
+
+    public long getFrameCount()
+    {
+        return timeline.getFrameCount();
+    }
+
+    public Timeline getTimeline()
+    {
+        return timeline;
+    }
+
+    /**
+     * Zooms the playback waveform to frames {@code [startFrame, startFrame + frameCount)}.
+     * A non-positive count shows the whole recording. Must be called on the main thread.
+     */
+    public void setVisibleRange(long startFrame, long frameCount)
+    {
+        // An explicit window stops a live overview from following the take.
+        liveWindowFrames = 0;
+        timeline.setVisibleRange(startFrame, frameCount);
+        requestRender(0);
     }
 
     public int getSampleRate()
     {
-        return sampleRate;
+        return timeline.getSampleRate();
     }
 
     public void setSampleRate(int sampleRate)
     {
-        this.sampleRate = sampleRate;
-        calculateAudioLength();
+        timeline.setSampleRate(sampleRate);
     }
 
     public int getChannels()
     {
-        return channels;
+        return timeline.getChannels();
     }
 
     public void setChannels(int channels)
     {
-        this.channels = channels;
-        calculateAudioLength();
+        timeline.setChannels(channels);
+        if (sampleRateList != null) {
+            timeline.setSampleCount(sampleRateList.length);
+        }
     }
 
-    public boolean showTextAxis()
+    /**
+     * @return the activity index of the current samples, or null before any are set.
+     */
+    public ActivityIndex getActivityIndex()
     {
-        return showTextAxis;
+        return model != null ? model.getActivityIndex() : null;
     }
 
-    public void setShowTextAxis(boolean showTextAxis)
+    public boolean recordingEnvelope()
     {
-        this.showTextAxis = showTextAxis;
+        return recordingEnvelope;
     }
 
-    private void calculateAudioLength()
+    /**
+     * In recording mode, treats incoming samples as {max, min} pairs from an envelope
+     * {@code Decimator} of one captured frame per column.
+     */
+    public void setRecordingEnvelope(boolean recordingEnvelope)
     {
-        if (sampleRateList == null || sampleRate == 0 || channels == 0)
-            return;
+        setRecordingEnvelope(recordingEnvelope, 1);
+    }
+
+    /**
+     * @param framesPerColumn captured frames summarized by each pair, used to tell how much
+     *                        time a block covers.
+     */
+    public void setRecordingEnvelope(boolean recordingEnvelope, int framesPerColumn)
+    {
+        this.recordingEnvelope = recordingEnvelope;
+        this.envelopeFramesPerColumn = Math.max(framesPerColumn, 1);
+    }
+
+    public int getAutoGain()
+    {
+        return autoGain;
+    }
+
+    /**
+     * @param autoGain {@link #GAIN_FIXED} scales by full scale, {@link #GAIN_GLOBAL} by the
+     *                 loudest peak of the recording and {@link #GAIN_WINDOW} by the loudest
+     *                 visible peak. Recording mode follows a smoothed running peak for either
+     *                 automatic setting.
+     */
+    public void setAutoGain(int autoGain)
+    {
+        this.autoGain = autoGain;
+        runningPeak = 0;
+        remapPeaks();
+    }
 
-        audioLength = AudioUtils.calculateAudioLength(sampleRateList.length, sampleRate, channels);
+    public int getGainScale()
+    {
+        return gainScale;
+    }
+
+    /**
+     * @param gainScale {@link #SCALE_LINEAR} or {@link #SCALE_DB}, which maps
+     *                  60 dB below the reference peak to the center line.
+     */
+    public void setGainScale(int gainScale)
+    {
+        this.gainScale = gainScale;
+        remapPeaks();
+    }
+
+    /**
+     * @return the display gain currently applied, 1 when drawing at full scale.
+     */
+    public float getGain()
+    {
+        return Short.MAX_VALUE / referencePeak;
+    }
+
+    public boolean showSilence()
+    {
+        return showSilence;
+    }
+
+    public void setShowSilence(boolean showSilence)
+    {
+        this.showSilence = showSilence;
+    }
+
+    public boolean showTextAxis()
+    {
+        return showTextAxis;
+    }
+
+    public void setShowTextAxis(boolean showTextAxis)
+    {
+        this.showTextAxis = showTextAxis;
     }
 
     private void onSamplesChanged()
@@ -249,14 +952,16 @@ public class WaveformView extends View
                 waveformPoints = new float[width * 4];
             }
 
-            drawRecordingWaveform(sampleRateList, waveformPoints);
+            if (recordingEnvelope) {
+                drawRecordingEnvelope(sampleRateList, waveformPoints);
+            } else {
+                drawRecordingWaveform(sampleRateList, waveformPoints);
+            }
             temp.addLast(waveformPoints);
             historicalData = temp;
-            postInvalidate();
         } else if (mode == MODE_PLAYBACK) {
-            markerPosition = -1;
-            xStep = width / (audioLength * 1.0f);
-            createPlaybackWaveform();
+            setModel(new WaveformModel(sampleRateList, timeline.getSampleRate(),
+                    timeline.getChannels()));
         }
     }
 
@@ -265,14 +970,15 @@ public class WaveformView extends View
         float lastX = -1;
         float lastY = -1;
         int pointIndex = 0;
-        float max = Short.MAX_VALUE;
+        int peak = 0;
 
         // For efficiency, we don't draw all of the samples in the buffer, but only the ones
-        // that align with pixel boundaries.
+        // that align with pixel boundaries. The y slots hold raw samples until the gain is known.
         for (int x = 0; x < width; x++) {
             int index = (int) (((x * 1.0f) / width) * buffer.length);
             short sample = buffer[index];
-            float y = centerY - ((sample / max) * centerY);
+            float y = sample;
+            peak = Math.max(peak, Math.abs(sample));
 
             if (lastX != -1) {
                 waveformPoints[pointIndex++] = lastX;
@@ -284,31 +990,83 @@ public class WaveformView extends View
             lastX = x;
             lastY = y;
         }
+        mapRecordingPoints(waveformPoints, pointIndex, peak);
     }
 
-    Path drawPlaybackWaveform(int width, int height, short[] buffer)
+    /**
+     * Draws {max, min} pairs as produced by an envelope decimator, one vertical line per pixel.
+     */
+    void drawRecordingEnvelope(short[] pairs, float[] waveformPoints)
     {
-        Path waveformPath = new Path();
-        float centerY = height / 2f;
-        float max = Short.MAX_VALUE;
+        int columns = pairs.length / 2;
+        if (columns == 0) return;
+        int pointIndex = 0;
+        int peak = 0;
 
-        short[][] extremes = SamplingUtils.getExtremes(buffer, width);
+        for (int x = 0; x < width; x++) {
+            int from = (int) (((long) x * columns) / width);
+            int to = Math.max(from + 1, (int) (((long) (x + 1) * columns) / width));
+            short high = Short.MIN_VALUE, low = Short.MAX_VALUE;
+            for (int c = from; c < to; c++) {
+                high = (short) Math.max(high, pairs[c * 2]);
+                low = (short) Math.min(low, pairs[c * 2 + 1]);
+            }
+            peak = Math.max(peak, Math.max(high, -(int) low));
+            waveformPoints[pointIndex++] = x;
+            waveformPoints[pointIndex++] = high;
+            waveformPoints[pointIndex++] = x;
+            waveformPoints[pointIndex++] = low;
+        }
+        mapRecordingPoints(waveformPoints, pointIndex, peak);
+    }
 
+    // Folds the buffer peak into the running peak and turns the raw y slots into pixels.
+    private void mapRecordingPoints(float[] waveformPoints, int count, int peak)
+    {
+        if (autoGain == GAIN_FIXED) {
+            referencePeak = Short.MAX_VALUE;
+        } else {
+            // Decay by the time the applied blocks cover, whatever their size or the frame rate.
+            int sampleRate = timeline.getSampleRate() > 0
+                    ? timeline.getSampleRate() : FALLBACK_SAMPLE_RATE;
+            double release = Math.pow(0.5,
+                    appliedBlockFrames / (sampleRate * PEAK_HALF_LIFE_SECONDS));
+            runningPeak = Math.max(peak, (float) (runningPeak * release));
+            referencePeak = Math.max(runningPeak, MIN_REFERENCE_PEAK);
+        }
+        for (int i = 1; i < count; i += 2) {
+            waveformPoints[i] = sampleToY(waveformPoints[i], centerY);
+        }
+    }
+
+    private float sampleToY(float sample, float centerY)
+    {
+        float level = sample / referencePeak;
+        if (gainScale == SCALE_DB && level != 0) {
+            float db = 20f * (float) Math.log10(Math.abs(level));
+            float scaled = Math.max(0f, 1f - db / DB_FLOOR);
+            level = level > 0 ? scaled : -scaled;
+        }
+        level = Math.max(-1f, Math.min(1f, level));
+        return centerY - level * centerY;
+    }
+
+    Path drawPlaybackWaveform(int width, int height)
+    {
+        Path waveformPath = this.waveformPath;
+        waveformPath.rewind();
+        float centerY = height / 2f;
 
         waveformPath.moveTo(0, centerY);
 
         // draw maximums
         for (int x = 0; x < width; x++) {
-            short sample = extremes[x][0];
-            float y = centerY - ((sample / max) * centerY);
-            waveformPath.lineTo(x, y);
+            waveformPath.lineTo(x, sampleToY(columnMax[x], centerY));
         }
 
         // draw minimums
         for (int x = width - 1; x >= 0; x--) {
-            short sample = extremes[x][1];
-            float y = centerY - ((sample / max) * centerY);
-            waveformPath.lineTo(x, y);
+            waveformPath.lineTo(x, sampleToY(columnMin[x], centerY));
         }
 
         waveformPath.close();
@@ -318,38 +1076,99 @@ public class WaveformView extends View
 
     private void createPlaybackWaveform()
     {
-        if (width <= 0 || height <= 0 || sampleRateList == null)
+        createPlaybackWaveform(0);
+    }
+
+    /**
+     * Re-renders the cached waveform; only columns from {@code firstDirtyColumn} on are
+     * re-read from the pyramid, the others come from the previous render. Passing the width
+     * re-maps the cached columns, e.g. after a gain change, without touching the pyramid.
+     * Main thread only: the bitmap or picture drawn by {@link #onDraw} is reused.
+     */
+    private void createPlaybackWaveform(int firstDirtyColumn)
+    {
+        WaveformModel model = this.model;
+        if (width <= 0 || height <= 0 || model == null)
             return;
 
+        if (columnMax == null || columnMax.length != width) {
+            columnMax = new short[width];
+            columnMin = new short[width];
+            firstDirtyColumn = 0;
+        }
+        model.getPeaks().getExtremes(timeline, firstDirtyColumn, width, columnMax, columnMin);
+        referencePeak = playbackReferencePeak(model.getPeaks());
+
         Canvas cacheCanvas;
         if (Build.VERSION.SDK_INT >= 23 && isHardwareAccelerated()) {
             cachedWaveform = new Picture();
             cacheCanvas = cachedWaveform.beginRecording(width, height);
         } else {
-            cachedWaveformBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            if (cachedWaveformBitmap == null || cachedWaveformBitmap.getWidth() != width
+                    || cachedWaveformBitmap.getHeight() != height) {
+                cachedWaveformBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            } else {
+                cachedWaveformBitmap.eraseColor(Color.TRANSPARENT);
+            }
             cacheCanvas = new Canvas(cachedWaveformBitmap);
         }
 
-        Path mWaveform = drawPlaybackWaveform(width, height, sampleRateList);
+        drawSilence(cacheCanvas, model.getActivityIndex());
+        Path mWaveform = drawPlaybackWaveform(width, height);
         cacheCanvas.drawPath(mWaveform, fillPaint);
         cacheCanvas.drawPath(mWaveform, strokePaint);
-        drawAxis(cacheCanvas, width);
+        drawAxis(cacheCanvas);
 
         if (cachedWaveform != null)
             cachedWaveform.endRecording();
     }
 
-    private void drawAxis(Canvas canvas, int width)
+    private float playbackReferencePeak(PeakSource peaks)
     {
-        if (!showTextAxis) return;
-        int seconds = audioLength / 1000;
-        float xStep = width / (audioLength / 1000f);
-        float textHeight = textPaint.getTextSize();
-        float textWidth = textPaint.measureText("10.00");
-        int secondStep = (int) (textWidth * seconds * 2) / width;
-        secondStep = Math.max(secondStep, 1);
-        for (float i = 0; i <= seconds; i += secondStep) {
-            canvas.drawText(String.format("%.2f", i), i * xStep, textHeight, textPaint);
+        int peak;
+        if (autoGain == GAIN_GLOBAL) {
+            peak = peaks.getPeak();
+        } else if (autoGain == GAIN_WINDOW) {
+            peak = 0;
+            for (int x = 0; x < width; x++) {
+                peak = Math.max(peak, Math.max(columnMax[x], -(int) columnMin[x]));
+            }
+        } else {
+            return Short.MAX_VALUE;
+        }
+        return Math.max(peak, MIN_REFERENCE_PEAK);
+    }
+
+    // Rebuilds the playback path from the cached column extremes; no samples are read.
+    private void remapPeaks()
+    {
+        if (columnMax != null) {
+            requestRender(width);
         }
     }
+
+    private void drawSilence(Canvas canvas, ActivityIndex index)
+    {
+        if (!showSilence) return;
+        long end = Math.min(timeline.getVisibleEndFrame(), index.getFrameCount());
+        long frame = timeline.getVisibleStartFrame();
+        while (frame < end) {
+            long active = index.nextActiveFrame(frame);
+            long silentEnd = active < 0 ? end : Math.min(active, end);
+            if (silentEnd > frame) {
+                float left = timeline.frameToX(frame), right = timeline.frameToX(silentEnd);
+                if (right - left >= 1) {
+                    canvas.drawRect(left, 0, right, height, silencePaint);
+                }
+            }
+            if (active < 0) break;
+            frame = index.activeEnd(active);
+        }
+    }
+
+    private void drawAxis(Canvas canvas)
+    {
+        if (!showTextAxis) return;
+        axisRenderer.draw(canvas, timeline, textPaint.getTextSize());
+    }
 }
@@ -12,4 +12,31 @@ public final class AudioUtils
     {
         return ((samplesCount / channelCount) * 1000) / sampleRate;
     }
+
+    public static long framesToMillis(long frames, int sampleRate)
+    {
+        // frames * 1000 only overflows past ~9.2e15 frames, which is millennia of audio.
+        return (frames * 1000) / sampleRate;
+    }
+
+    public static long millisToFrames(long millis, int sampleRate)
+    {
+        return (millis * sampleRate) / 1000;
+    }
+
+    public static long framesToNanos(long frames, int sampleRate)
+    {
+        // Split into whole seconds first so that hours of audio do not overflow.
+        return (frames / sampleRate) * 1000000000L + ((frames % sampleRate) * 1000000000L) / sampleRate;
+    }
+
+    public static long nanosToFrames(long nanos, int sampleRate)
+    {
+        return (nanos / 1000000000L) * sampleRate + ((nanos % 1000000000L) * sampleRate) / 1000000000L;
+    }
+
+    public static double framesToSeconds(long frames, int sampleRate)
+    {
+        return frames / (double) sampleRate;
+    }
 }
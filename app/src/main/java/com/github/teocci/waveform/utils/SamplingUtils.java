@@ -30,4 +30,23 @@ public final class SamplingUtils
 
         return newData;
     }
+
+    /**
+     * Folds the samples of frames {@code [fromFrame, toFrame)} into {@code extremes}, which
+     * holds {max, min} and must be seeded by the caller.
+     */
+    public static void foldExtremes(short[] data, int channels, long fromFrame, long toFrame,
+                                    short[] extremes)
+    {
+        int from = (int) (fromFrame * channels);
+        int to = (int) Math.min(toFrame * channels, data.length);
+        short max = extremes[0], min = extremes[1];
+        for (int i = from; i < to; i++) {
+            short a = data[i];
+            if (a > max) max = a;
+            if (a < min) min = a;
+        }
+        extremes[0] = max;
+        extremes[1] = min;
+    }
 }
@@ -0,0 +1,108 @@
+package com.github.teocci.audiotrackwaveform;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DecimatorTest
+{
+    private static final int SAMPLE_RATE = 44100;
+    private static final int OUTPUT_RATE = 11025;
+    private static final int BLOCK_SIZE = 512;
+
+    @Test
+    public void lowPassKeepsUnityGainAtDc()
+    {
+        short[] input = new short[SAMPLE_RATE];
+        Arrays.fill(input, (short) 10000);
+        short[] output = decimate(Decimator.lowPass(SAMPLE_RATE, OUTPUT_RATE, BLOCK_SIZE), input);
+
+        assertEquals(input.length / 4, output.length);
+        // Skip the outputs computed while the filter history was still zero.
+        for (int i = 16; i < output.length; i++) {
+            assertEquals("output " + i, 10000, output[i], 1);
+        }
+    }
+
+    @Test
+    public void lowPassRejectsToneAboveOutputNyquist()
+    {
+        // 13.2 kHz would alias to 2.2 kHz at 11025 Hz if it got through.
+        double frequency = 0.3 * SAMPLE_RATE;
+        short[] input = new short[SAMPLE_RATE];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (short) Math.round(20000 * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        short[] output = decimate(Decimator.lowPass(SAMPLE_RATE, OUTPUT_RATE, BLOCK_SIZE), input);
+
+        double rejection = 20 * Math.log10(rms(output, 16) / rms(input, 0));
+        assertTrue("rejection " + rejection + " dB", rejection < -60);
+    }
+
+    @Test
+    public void envelopePairsMatchInputExtremes()
+    {
+        int framesPerColumn = 100;
+        Random random = new Random(1);
+        // Not a whole number of columns, so flush has to close the last one.
+        short[] input = new short[SAMPLE_RATE + 37];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (short) (random.nextInt(65536) - 32768);
+        }
+        short[] output = decimate(Decimator.envelope(framesPerColumn, 64), input);
+
+        int columns = (input.length + framesPerColumn - 1) / framesPerColumn;
+        assertEquals(2 * columns, output.length);
+        for (int column = 0; column < columns; column++) {
+            short max = Short.MIN_VALUE, min = Short.MAX_VALUE;
+            int end = Math.min(input.length, (column + 1) * framesPerColumn);
+            for (int i = column * framesPerColumn; i < end; i++) {
+                max = (short) Math.max(max, input[i]);
+                min = (short) Math.min(min, input[i]);
+            }
+            assertEquals("max of column " + column, max, output[2 * column]);
+            assertEquals("min of column " + column, min, output[2 * column + 1]);
+        }
+    }
+
+    /**
+     * Feeds {@code input} in uneven chunks, as a capture source would, flushes, and returns
+     * everything the listener received.
+     */
+    private static short[] decimate(Decimator decimator, short[] input)
+    {
+        final short[][] output = {new short[0]};
+        AudioDataReceivedListener listener = new AudioDataReceivedListener()
+        {
+            @Override
+            public void onAudioDataReceived(short[] data)
+            {
+                short[] joined = Arrays.copyOf(output[0], output[0].length + data.length);
+                System.arraycopy(data, 0, joined, output[0].length, data.length);
+                output[0] = joined;
+            }
+        };
+        Random random = new Random(2);
+        int offset = 0;
+        while (offset < input.length) {
+            int length = Math.min(input.length - offset, 1 + random.nextInt(3000));
+            decimator.process(input, offset, length, listener);
+            offset += length;
+        }
+        decimator.flush(listener);
+        return output[0];
+    }
+
+    private static double rms(short[] samples, int from)
+    {
+        double sum = 0;
+        for (int i = from; i < samples.length; i++) {
+            sum += (double) samples[i] * samples[i];
+        }
+        return Math.sqrt(sum / (samples.length - from));
+    }
+}
@@ -0,0 +1,215 @@
+package com.github.teocci.audiotrackwaveform;
+
+import com.github.teocci.waveform.utils.AudioUtils;
+
+/**
+ * Playback sink for off-device runs. It plays at the sample rate of a {@link SimulatedClock}
+ * out of a bounded buffer: a write that does not fit blocks (advances the clock) until enough
+ * has been played, and the time spent blocked is reported as backpressure. If the buffer runs
+ * dry before the writer catches up the head stalls and an underrun is counted, like a real
+ * {@link android.media.AudioTrack}. Position callbacks are delivered on the writing thread.
+ */
+
+public class FakeAudioSink implements AudioSink
+{
+    private final SimulatedClock clock;
+    private final int sampleRate;
+    private final int bufferSize;
+    private final int capacityFrames;
+
+    private PositionListener positionListener;
+    private int periodFrames;
+    private long markerFrames = -1;
+    private boolean markerReached;
+    private long nextNotification;
+
+    private boolean started;
+    private boolean draining;
+    private boolean starved;
+    private long lastUpdateNanos;
+    private long writtenFrames;
+    private long playedFrames;
+
+    private long underruns;
+    private long blockedNanos;
+    private long notifications;
+
+    /**
+     * @param bufferSize     preferred write size in samples.
+     * @param capacityFrames how much queued audio the sink holds before writes block.
+     */
+    public FakeAudioSink(SimulatedClock clock, int sampleRate, int bufferSize, int capacityFrames)
+    {
+        this.clock = clock;
+        this.sampleRate = sampleRate;
+        this.bufferSize = bufferSize;
+        this.capacityFrames = capacityFrames;
+    }
+
+    @Override
+    public synchronized void setPositionListener(PositionListener listener, int periodFrames)
+    {
+        this.positionListener = listener;
+        this.periodFrames = periodFrames;
+    }
+
+    @Override
+    public void setNotificationMarkerPosition(long frames)
+    {
+        PositionListener listener;
+        synchronized (this) {
+            markerFrames = frames;
+            markerReached = false;
+            listener = positionListener;
+        }
+        fireCallbacks(listener);
+    }
+
+    @Override
+    public synchronized boolean start()
+    {
+        started = true;
+        draining = false;
+        // Nothing has been queued yet, so an empty buffer is not an underrun.
+        starved = true;
+        markerReached = false;
+        lastUpdateNanos = clock.nanoTime();
+        writtenFrames = 0;
+        playedFrames = 0;
+        nextNotification = periodFrames;
+        return true;
+    }
+
+    @Override
+    public int write(short[] buffer, int offset, int length)
+    {
+        PositionListener listener;
+        synchronized (this) {
+            if (!started)
+                return -1;
+
+            update(clock.nanoTime());
+            long free = capacityFrames - (writtenFrames - playedFrames);
+            if (free < length) {
+                long waitNanos = AudioUtils.framesToNanos(length - free, sampleRate);
+                clock.advanceBy(waitNanos);
+                blockedNanos += waitNanos;
+                update(clock.nanoTime());
+            }
+            writtenFrames += length;
+            starved = false;
+            listener = positionListener;
+        }
+        fireCallbacks(listener);
+        return length;
+    }
+
+    /**
+     * Plays out everything that was queued by moving the clock to the end of the buffer.
+     */
+    @Override
+    public void drain()
+    {
+        PositionListener listener;
+        synchronized (this) {
+            if (!started)
+                return;
+
+            draining = true;
+            update(clock.nanoTime());
+            clock.advanceBy(AudioUtils.framesToNanos(writtenFrames - playedFrames, sampleRate));
+            update(clock.nanoTime());
+            listener = positionListener;
+        }
+        fireCallbacks(listener);
+    }
+
+    @Override
+    public synchronized long getPlaybackHeadPosition()
+    {
+        return playedFrames;
+    }
+
+    @Override
+    public synchronized void release()
+    {
+        started = false;
+    }
+
+    @Override
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    @Override
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    public synchronized long getUnderruns()
+    {
+        return underruns;
+    }
+
+    /**
+     * @return the simulated time writers spent blocked on a full buffer.
+     */
+    public synchronized long getBlockedNanos()
+    {
+        return blockedNanos;
+    }
+
+    public synchronized long getNotificationCount()
+    {
+        return notifications;
+    }
+
+    // Advances the head to the audio time {@code now}, stalling when the buffer is empty.
+    private void update(long now)
+    {
+        long playable = AudioUtils.nanosToFrames(now - lastUpdateNanos, sampleRate);
+        long queued = writtenFrames - playedFrames;
+        if (playable > queued) {
+            if (!starved && !draining) {
+                underruns++;
+            }
+            starved = true;
+            playedFrames = writtenFrames;
+            lastUpdateNanos = now;
+        } else {
+            playedFrames += playable;
+            lastUpdateNanos += AudioUtils.framesToNanos(playable, sampleRate);
+        }
+    }
+
+    private void fireCallbacks(PositionListener listener)
+    {
+        if (listener == null)
+            return;
+
+        while (true) {
+            long head;
+            boolean marker = false;
+            synchronized (this) {
+                if (periodFrames > 0 && playedFrames >= nextNotification) {
+                    head = nextNotification;
+                    nextNotification += periodFrames;
+                    notifications++;
+                } else if (markerFrames >= 0 && !markerReached && playedFrames >= markerFrames) {
+                    head = markerFrames;
+                    markerReached = true;
+                    marker = true;
+                } else {
+                    return;
+                }
+            }
+            if (marker) {
+                listener.onMarkerReached();
+            } else {
+                listener.onPeriodicNotification(head);
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.github.teocci.audiotrackwaveform;
+
+import com.github.teocci.waveform.utils.AudioUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deterministic capture source for off-device runs. It synthesizes half-second bursts of tone
+ * and noise separated by silence, paced by a {@link SimulatedClock}: a read blocks (advances
+ * the clock) until its samples would have been captured. When the reader falls behind by more
+ * than the capture buffer, the oldest samples are dropped and counted as an overrun, like a
+ * real {@link android.media.AudioRecord}.
+ */
+
+public class FakeAudioSource implements AudioSource
+{
+    private static final int SINE_TABLE_SIZE = 1024;
+    private static final short[] SINE_TABLE = new short[SINE_TABLE_SIZE];
+
+    static {
+        for (int i = 0; i < SINE_TABLE_SIZE; i++) {
+            SINE_TABLE[i] = (short) (Math.sin(2 * Math.PI * i / SINE_TABLE_SIZE) * Short.MAX_VALUE);
+        }
+    }
+
+    private final SimulatedClock clock;
+    private final int sampleRate;
+    private final int bufferSize;
+    private final int capacityFrames;
+    private final long totalFrames;
+    private final long seed;
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean running;
+    private long startNanos;
+    private long deliveredFrames;
+
+    private long blocks;
+    private long overruns;
+    private long droppedFrames;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+
+    /**
+     * @param totalFrames    frames to produce before reporting the end of the stream.
+     * @param bufferSize     preferred read size in samples.
+     * @param capacityFrames how far the reader may lag before samples are dropped.
+     */
+    public FakeAudioSource(SimulatedClock clock, int sampleRate, long totalFrames, int bufferSize,
+                           int capacityFrames, long seed)
+    {
+        this.clock = clock;
+        this.sampleRate = sampleRate;
+        this.totalFrames = totalFrames;
+        this.bufferSize = bufferSize;
+        this.capacityFrames = capacityFrames;
+        this.seed = seed;
+    }
+
+    @Override
+    public synchronized boolean start()
+    {
+        running = true;
+        startNanos = clock.nanoTime();
+        deliveredFrames = 0;
+        return true;
+    }
+
+    @Override
+    public synchronized int read(short[] buffer, int offset, int length)
+    {
+        if (!running || deliveredFrames >= totalFrames)
+            return -1;
+
+        long now = clock.nanoTime();
+        long backlog = AudioUtils.nanosToFrames(now - startNanos, sampleRate) - deliveredFrames;
+        if (backlog > capacityFrames) {
+            long lost = Math.min(backlog - capacityFrames, totalFrames - deliveredFrames);
+            deliveredFrames += lost;
+            droppedFrames += lost;
+            overruns++;
+            if (deliveredFrames >= totalFrames)
+                return -1;
+        }
+
+        int count = (int) Math.min(length, totalFrames - deliveredFrames);
+        long readyNanos = startNanos + AudioUtils.framesToNanos(deliveredFrames + count, sampleRate);
+        if (now < readyNanos) {
+            clock.advanceTo(readyNanos);
+        } else {
+            long latency = now - readyNanos;
+            totalLatencyNanos += latency;
+            maxLatencyNanos = Math.max(maxLatencyNanos, latency);
+        }
+
+        synthesize(buffer, offset, count, deliveredFrames, sampleRate, seed);
+        deliveredFrames += count;
+        blocks++;
+        return count;
+    }
+
+    @Override
+    public void stop()
+    {
+        running = false;
+        stopped.countDown();
+    }
+
+    /**
+     * Waits until the reader has stopped the source.
+     */
+    public boolean awaitStopped(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return stopped.await(timeout, unit);
+    }
+
+    @Override
+    public int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    @Override
+    public int getChannels()
+    {
+        return 1;
+    }
+
+    @Override
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    public synchronized long getDeliveredFrames()
+    {
+        return deliveredFrames;
+    }
+
+    public synchronized long getBlockCount()
+    {
+        return blocks;
+    }
+
+    public synchronized long getOverruns()
+    {
+        return overruns;
+    }
+
+    public synchronized long getDroppedFrames()
+    {
+        return droppedFrames;
+    }
+
+    /**
+     * @return the longest time a block waited in the capture buffer before being read.
+     */
+    public synchronized long getMaxLatencyNanos()
+    {
+        return maxLatencyNanos;
+    }
+
+    public synchronized long getTotalLatencyNanos()
+    {
+        return totalLatencyNanos;
+    }
+
+    /**
+     * Writes the synthetic signal for frames {@code [startFrame, startFrame + count)}. The same
+     * frame always yields the same sample, so runs are reproducible.
+     */
+    public static void synthesize(short[] out, int offset, int count, long startFrame,
+                                  int sampleRate, long seed)
+    {
+        long segmentFrames = Math.max(sampleRate / 2, 1);
+        long noise = seed ^ (startFrame * 0x9E3779B97F4A7C15L);
+        for (int i = 0; i < count; i++) {
+            long frame = startFrame + i;
+            long segment = frame / segmentFrames;
+            long hash = (segment + seed) * 0x9E3779B97F4A7C15L;
+            hash ^= hash >>> 29;
+            noise = noise * 6364136223846793005L + 1442695040888963407L;
+            short value = 0;
+            // Two out of three segments are active.
+            if ((hash & 0xFFFF) % 3 != 0) {
+                int amplitude = (int) ((hash >>> 16) & 0x3FFF) + 0x1000;
+                int step = (int) ((hash >>> 32) & 0x1F) + 4;
+                int tone = SINE_TABLE[(int) ((frame * step) & (SINE_TABLE_SIZE - 1))];
+                int hiss = (int) (noise >> 53);
+                value = (short) ((tone * amplitude) / (Short.MAX_VALUE + 1) + hiss);
+            }
+            out[offset + i] = value;
+        }
+    }
+}
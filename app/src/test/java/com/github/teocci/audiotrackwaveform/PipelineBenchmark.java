@@ -0,0 +1,188 @@
+package com.github.teocci.audiotrackwaveform;
+
+import com.github.teocci.waveform.WaveformModel;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the real {@link RecordingThread} and {@link PlaybackThread} against
+ * {@link FakeAudioSource}/{@link FakeAudioSink} so throughput, latency and backpressure of the
+ * pipeline can be measured on a plain JVM by the local unit tests. The logging of the threads
+ * is stubbed out by {@code unitTests.returnDefaultValues}. Hours of synthetic audio run in
+ * seconds because the fakes advance a {@link SimulatedClock} instead of sleeping; the
+ * wall-clock time spent in the consumer is charged to that clock, so a consumer slower than
+ * real time shows up as capture latency and overruns.
+ *
+ * Capture is measured up to {@link WaveformModel#append}, including the model's observer
+ * notification, but not the {@code WaveformView} side: frame coalescing, onModelChanged,
+ * createPlaybackWaveform and the copy in postSamples run on the main looper, which the
+ * stubbed android.jar never drives. Those costs have to be profiled on a device.
+ */
+public final class PipelineBenchmark
+{
+    // An hour of audio takes about a second, so this only trips when the pipeline stalls.
+    private static final long TIMEOUT_SECONDS = 60;
+
+    public static final class Result
+    {
+        public final String name;
+        public final long frames;
+        public final int sampleRate;
+        public final long wallNanos;
+        public final long simulatedNanos;
+        public final long blocks;
+        public final long maxLatencyNanos;
+        public final long meanLatencyNanos;
+        public final long maxProcessingNanos;
+        public final long overruns;
+        public final long droppedFrames;
+        public final long underruns;
+        public final long blockedNanos;
+        public final long callbacks;
+
+        Result(String name, long frames, int sampleRate, long wallNanos, long simulatedNanos,
+               long blocks, long maxLatencyNanos, long meanLatencyNanos, long maxProcessingNanos,
+               long overruns, long droppedFrames, long underruns, long blockedNanos, long callbacks)
+        {
+            this.name = name;
+            this.frames = frames;
+            this.sampleRate = sampleRate;
+            this.wallNanos = wallNanos;
+            this.simulatedNanos = simulatedNanos;
+            this.blocks = blocks;
+            this.maxLatencyNanos = maxLatencyNanos;
+            this.meanLatencyNanos = meanLatencyNanos;
+            this.maxProcessingNanos = maxProcessingNanos;
+            this.overruns = overruns;
+            this.droppedFrames = droppedFrames;
+            this.underruns = underruns;
+            this.blockedNanos = blockedNanos;
+            this.callbacks = callbacks;
+        }
+
+        /**
+         * @return how many times faster than real time the audio went through.
+         */
+        public double getSpeedFactor()
+        {
+            return wallNanos > 0 ? (frames * 1e9 / sampleRate) / wallNanos : 0;
+        }
+
+        public double getFramesPerSecond()
+        {
+            return wallNanos > 0 ? frames * 1e9 / wallNanos : 0;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: %d frames in %.1f ms (%.0fx real time, %.0f frames/s), "
+                            + "blocks=%d, latency max=%.2f ms mean=%.3f ms, processing max=%.3f ms, "
+                            + "overruns=%d (%d frames), underruns=%d, blocked=%.1f s, callbacks=%d",
+                    name, frames, wallNanos / 1e6, getSpeedFactor(), getFramesPerSecond(),
+                    blocks, maxLatencyNanos / 1e6, meanLatencyNanos / 1e6, maxProcessingNanos / 1e6,
+                    overruns, droppedFrames, underruns, blockedNanos / 1e9, callbacks);
+        }
+    }
+
+    private PipelineBenchmark()
+    {
+    }
+
+    /**
+     * Captures {@code frames} of synthetic audio through a {@link RecordingThread} into a live
+     * {@link WaveformModel}, the same path the recording overview uses.
+     */
+    public static Result runCaptureToModel(long frames, int sampleRate, int bufferSize)
+            throws InterruptedException
+    {
+        final WaveformModel model = new WaveformModel(sampleRate, 1);
+        return runCapture("capture->model", frames, sampleRate, bufferSize,
+                new AudioDataReceivedListener()
+                {
+                    @Override
+                    public void onAudioDataReceived(short[] data)
+                    {
+                        model.append(data, 0, data.length);
+                    }
+                });
+    }
+
+    public static Result runCapture(String name, long frames, int sampleRate, int bufferSize,
+                                    final AudioDataReceivedListener consumer)
+            throws InterruptedException
+    {
+        final SimulatedClock clock = new SimulatedClock();
+        FakeAudioSource source = new FakeAudioSource(clock, sampleRate, frames, bufferSize,
+                bufferSize * 4, 1);
+        final long[] processing = new long[1];
+
+        RecordingThread recordingThread = new RecordingThread(source, new AudioDataReceivedListener()
+        {
+            @Override
+            public void onAudioDataReceived(short[] data)
+            {
+                long begin = System.nanoTime();
+                consumer.onAudioDataReceived(data);
+                long elapsed = System.nanoTime() - begin;
+                processing[0] = Math.max(processing[0], elapsed);
+                clock.advanceBy(elapsed);
+            }
+        });
+
+        long wallStart = System.nanoTime();
+        recordingThread.startRecording();
+        boolean stopped = source.awaitStopped(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long wallNanos = System.nanoTime() - wallStart;
+        recordingThread.stopRecording();
+        assertTrue(name + " stalled after " + source.getDeliveredFrames() + " frames", stopped);
+
+        long blocks = source.getBlockCount();
+        return new Result(name, source.getDeliveredFrames(), sampleRate, wallNanos,
+                clock.nanoTime(), blocks, source.getMaxLatencyNanos(),
+                blocks > 0 ? source.getTotalLatencyNanos() / blocks : 0, processing[0],
+                source.getOverruns(), source.getDroppedFrames(), 0, 0, 0);
+    }
+
+    /**
+     * Streams {@code samples} through a {@link PlaybackThread} into a {@link FakeAudioSink}
+     * holding {@code capacityFrames}, and waits for the completion callback.
+     */
+    public static Result runPlayback(short[] samples, int sampleRate, int bufferSize,
+                                     int capacityFrames) throws InterruptedException
+    {
+        SimulatedClock clock = new SimulatedClock();
+        FakeAudioSink sink = new FakeAudioSink(clock, sampleRate, bufferSize, capacityFrames);
+        final CountDownLatch completed = new CountDownLatch(1);
+        final long[] progress = new long[1];
+
+        PlaybackThread playbackThread = new PlaybackThread(samples, sink, new PlaybackListener()
+        {
+            @Override
+            public void onProgress(long framePosition)
+            {
+                progress[0]++;
+            }
+
+            @Override
+            public void onCompletion()
+            {
+                completed.countDown();
+            }
+        });
+
+        long wallStart = System.nanoTime();
+        playbackThread.startPlayback();
+        boolean done = completed.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long wallNanos = System.nanoTime() - wallStart;
+        playbackThread.stopPlayback();
+        assertTrue("playback stalled at frame " + sink.getPlaybackHeadPosition(), done);
+
+        return new Result("playback", sink.getPlaybackHeadPosition(), sampleRate, wallNanos,
+                clock.nanoTime(), 0, 0, 0, 0, 0, 0, sink.getUnderruns(), sink.getBlockedNanos(),
+                progress[0]);
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.teocci.audiotrackwaveform;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the capture and playback threads against the simulated-clock fakes; hours of audio
+ * take seconds, so a consumer or producer that cannot keep up with real time shows up here.
+ */
+public class PipelineBenchmarkTest
+{
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BUFFER_SIZE = 4096;
+
+    @Test
+    public void captureIntoLiveModelKeepsUpForAnHour() throws InterruptedException
+    {
+        long frames = SAMPLE_RATE * 3600L;
+        PipelineBenchmark.Result result =
+                PipelineBenchmark.runCaptureToModel(frames, SAMPLE_RATE, BUFFER_SIZE);
+        String figures = result.toString();
+
+        assertEquals(figures, frames, result.frames);
+        assertEquals(figures, 0, result.overruns);
+        assertEquals(figures, 0, result.droppedFrames);
+        assertTrue(figures, result.getSpeedFactor() > 1);
+    }
+
+    @Test
+    public void playbackNeverUnderruns() throws InterruptedException
+    {
+        short[] samples = new short[SAMPLE_RATE * 10];
+        FakeAudioSource.synthesize(samples, 0, samples.length, 0, SAMPLE_RATE, 1);
+        PipelineBenchmark.Result result =
+                PipelineBenchmark.runPlayback(samples, SAMPLE_RATE, BUFFER_SIZE, BUFFER_SIZE * 4);
+        String figures = result.toString();
+
+        assertEquals(figures, samples.length, result.frames);
+        assertEquals(figures, 0, result.underruns);
+        // One progress callback per 1/30 s of audio played.
+        assertTrue(figures, result.callbacks >= 10 * 30 - 1);
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.teocci.audiotrackwaveform;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PlaybackThreadTest
+{
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BUFFER_SIZE = 4096;
+
+    @Test
+    public void shortLoopProgressStaysInsideRegion() throws InterruptedException
+    {
+        // A 100-frame loop in a sink holding 16384 frames queues over a hundred wraps ahead.
+        final long start = 1000, end = 1100;
+        final long[] outside = new long[1];
+        final CountDownLatch progress = new CountDownLatch(300);
+        FakeAudioSink sink = new FakeAudioSink(new SimulatedClock(), SAMPLE_RATE, BUFFER_SIZE,
+                BUFFER_SIZE * 4);
+        PlaybackThread playbackThread = new PlaybackThread(new short[SAMPLE_RATE], sink,
+                new PlaybackListener()
+                {
+                    @Override
+                    public void onProgress(long framePosition)
+                    {
+                        if (framePosition < start || framePosition >= end) {
+                            outside[0]++;
+                        }
+                        progress.countDown();
+                    }
+
+                    @Override
+                    public void onCompletion()
+                    {
+                    }
+                });
+        playbackThread.setRegion(start, end);
+        playbackThread.setLooping(true);
+
+        playbackThread.startPlayback();
+        assertTrue(progress.await(1, TimeUnit.MINUTES));
+        playbackThread.stopPlayback();
+
+        assertEquals(0, outside[0]);
+        assertEquals(0, sink.getUnderruns());
+    }
+
+    @Test
+    public void loopStreamIsPeriodic() throws InterruptedException
+    {
+        final short[] samples = new short[SAMPLE_RATE];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) i;
+        }
+        final long start = 10000, end = 13000;
+        final short[] written = new short[(int) (end - start) * 40];
+        final int[] count = new int[1];
+        final CountDownLatch filled = new CountDownLatch(1);
+        FakeAudioSink sink = new FakeAudioSink(new SimulatedClock(), SAMPLE_RATE, BUFFER_SIZE,
+                BUFFER_SIZE * 4)
+        {
+            @Override
+            public int write(short[] buffer, int offset, int length)
+            {
+                int n = Math.min(length, written.length - count[0]);
+                System.arraycopy(buffer, offset, written, count[0], n);
+                count[0] += n;
+                if (count[0] == written.length) {
+                    filled.countDown();
+                }
+                return super.write(buffer, offset, length);
+            }
+        };
+        PlaybackThread playbackThread = new PlaybackThread(samples, sink, null);
+        playbackThread.setRegion(start, end);
+        playbackThread.setLooping(true);
+
+        playbackThread.startPlayback();
+        assertTrue(filled.await(1, TimeUnit.MINUTES));
+        playbackThread.stopPlayback();
+
+        for (int i = 0; i < written.length; i++) {
+            assertEquals(start + i % (end - start), written[i]);
+        }
+    }
+}
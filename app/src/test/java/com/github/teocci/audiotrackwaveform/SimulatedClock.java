@@ -0,0 +1,34 @@
+package com.github.teocci.audiotrackwaveform;
+
+/**
+ * Virtual time shared by {@link FakeAudioSource} and {@link FakeAudioSink}. Nothing sleeps:
+ * a blocking read or write simply moves the clock forward, so hours of audio can be pushed
+ * through the pipeline in seconds while latencies are still measured in audio time.
+ */
+
+public class SimulatedClock
+{
+    private long nanos;
+
+    public synchronized long nanoTime()
+    {
+        return nanos;
+    }
+
+    public synchronized void advanceBy(long deltaNanos)
+    {
+        if (deltaNanos > 0) {
+            nanos += deltaNanos;
+        }
+    }
+
+    /**
+     * Moves the clock to {@code timeNanos} unless it is already past it.
+     */
+    public synchronized void advanceTo(long timeNanos)
+    {
+        if (timeNanos > nanos) {
+            nanos = timeNanos;
+        }
+    }
+}
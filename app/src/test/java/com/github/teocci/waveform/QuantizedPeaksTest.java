@@ -0,0 +1,152 @@
+package com.github.teocci.waveform;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantizedPeaksTest
+{
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAMES = 60 * SAMPLE_RATE;
+    private static final int QUERIES = 2000;
+
+    @Test
+    public void decodedEnvelopeContainsExactOne()
+    {
+        short[] samples = createBurstySignal(new Random(1), FRAMES);
+        PeakPyramid exact = new PeakPyramid(samples, 1);
+        int[] scales = {QuantizedPeaks.SCALE_LINEAR, QuantizedPeaks.SCALE_LOG};
+        int[] firstLevels = {0, 2};
+        short[] expected = new short[2];
+        short[] actual = new short[2];
+        for (int scale : scales) {
+            for (int firstLevel : firstLevels) {
+                QuantizedPeaks quantized = new QuantizedPeaks(exact, scale, firstLevel);
+                Random random = new Random(2);
+                for (int i = 0; i < QUERIES; i++) {
+                    long from = random.nextInt(FRAMES);
+                    long to = from + 1 + random.nextInt(FRAMES - (int) from);
+                    exact.getExtremes(from, to, expected);
+                    quantized.getExtremes(from, to, actual);
+                    assertTrue(actual[0] >= expected[0]);
+                    assertTrue(actual[1] <= expected[1]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void linearErrorStaysWithinOneStep()
+    {
+        double maxError = measureMaxError(QuantizedPeaks.SCALE_LINEAR, 0);
+        // One step of the linear codebook is 32767 / 127 = 258.
+        assertTrue("linear error " + maxError, maxError <= 259);
+    }
+
+    @Test
+    public void logErrorStaysBelowHalfDecibelAboveMinus30Dbfs()
+    {
+        double maxError = measureMaxError(QuantizedPeaks.SCALE_LOG, 1036);
+        assertTrue("log error " + maxError + " dB", maxError <= 0.5);
+    }
+
+    @Test
+    public void emptyRangeDecodesToSilence()
+    {
+        short[] samples = createBurstySignal(new Random(1), SAMPLE_RATE);
+        QuantizedPeaks quantized = new QuantizedPeaks(new PeakPyramid(samples, 1),
+                QuantizedPeaks.SCALE_LOG);
+        short[] out = {1, 1};
+        quantized.getExtremes(100, 100, out);
+        assertEquals(0, out[0]);
+        assertEquals(0, out[1]);
+    }
+
+    @Test
+    public void sizeIsOneBytePerValue()
+    {
+        short[] samples = createBurstySignal(new Random(1), FRAMES);
+        PeakPyramid pyramid = new PeakPyramid(samples, 1);
+        QuantizedPeaks quantized = new QuantizedPeaks(pyramid, QuantizedPeaks.SCALE_LINEAR);
+        long entries = 0;
+        for (int level = 0; level < pyramid.getLevelCount(); level++) {
+            entries += pyramid.getBlockCount(level);
+        }
+        long levelBytes = 8L * pyramid.getLevelCount();
+        assertEquals(2 * entries + levelBytes, quantized.getSizeInBytes());
+        // Half of the pyramid's 16-bit {max, min} pairs, plus the level offsets and counts.
+        assertEquals(4 * entries / 2, quantized.getSizeInBytes() - levelBytes);
+    }
+
+    @Test
+    public void twoDozenTenMinuteOverviewsFitInTwoAndAHalfMegabytes()
+    {
+        // Built from chunks so the test never holds 10 minutes of samples at once.
+        PeakPyramid pyramid = new PeakPyramid(1);
+        Random random = new Random(3);
+        short[] chunk = new short[SAMPLE_RATE];
+        for (int second = 0; second < 600; second++) {
+            fillBurstySignal(random, chunk);
+            pyramid.append(chunk, 0, chunk.length);
+        }
+        QuantizedPeaks quantized = new QuantizedPeaks(pyramid, QuantizedPeaks.SCALE_LOG, 2);
+        long total = 24 * quantized.getSizeInBytes();
+        assertTrue("24 x 10 min take " + total + " bytes", total < 2500 * 1000);
+    }
+
+    /**
+     * @return the largest gap between the exact and the decoded envelope over block-aligned
+     * ranges, in sample units for the linear scale and in dB for the log scale, where extremes
+     * quieter than {@code minLevel} are skipped.
+     */
+    private static double measureMaxError(int scale, int minLevel)
+    {
+        short[] samples = createBurstySignal(new Random(1), FRAMES);
+        PeakPyramid exact = new PeakPyramid(samples, 1);
+        QuantizedPeaks quantized = new QuantizedPeaks(exact, scale);
+        int blocks = FRAMES / PeakPyramid.BASE_BLOCK_SIZE;
+        short[] expected = new short[2];
+        short[] actual = new short[2];
+        double maxError = 0;
+        Random random = new Random(2);
+        for (int i = 0; i < QUERIES; i++) {
+            long from = (long) random.nextInt(blocks) * PeakPyramid.BASE_BLOCK_SIZE;
+            long to = from + (1 + random.nextInt(64)) * PeakPyramid.BASE_BLOCK_SIZE;
+            exact.getExtremes(from, to, expected);
+            quantized.getExtremes(from, to, actual);
+            for (int k = 0; k < 2; k++) {
+                int magnitude = Math.abs(expected[k]);
+                if (magnitude < minLevel) continue;
+                double error = scale == QuantizedPeaks.SCALE_LOG
+                        ? 20 * Math.log10(Math.abs(actual[k]) / (double) magnitude)
+                        : Math.abs(actual[k] - expected[k]);
+                maxError = Math.max(maxError, error);
+            }
+        }
+        return maxError;
+    }
+
+    private static short[] createBurstySignal(Random random, int frames)
+    {
+        short[] samples = new short[frames];
+        fillBurstySignal(random, samples);
+        return samples;
+    }
+
+    // Noise bursts of random loudness between -60 and 0 dBFS, separated by silence.
+    private static void fillBurstySignal(Random random, short[] out)
+    {
+        int i = 0;
+        while (i < out.length) {
+            int length = Math.min(out.length - i, 1000 + random.nextInt(20000));
+            boolean silent = random.nextInt(3) == 0;
+            double amplitude = Math.pow(10, -3 * random.nextDouble()) * Short.MAX_VALUE;
+            for (int end = i + length; i < end; i++) {
+                out[i] = silent ? 0 : (short) Math.round((2 * random.nextDouble() - 1) * amplitude);
+            }
+        }
+    }
+}